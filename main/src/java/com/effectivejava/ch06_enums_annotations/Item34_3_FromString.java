@@ -3,9 +3,6 @@ package com.effectivejava.ch06_enums_annotations;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Stream;
-
-import static java.util.stream.Collectors.toMap;
 
 /**
  * If you override the `toString` method in an enum type,
@@ -22,7 +19,7 @@ public enum Item34_3_FromString {
 
         // Q: have each constant put itself into a map from its own constructor?
         // A: Enum constructors aren’t permitted to access the enum’s static fields
-        // stringToEnum2.put(this.toString(), this);
+        // stringToEnum.put(this.toString(), this);
     }
 
     @Override 
@@ -31,21 +28,25 @@ public enum Item34_3_FromString {
     }
 
     public Optional<Item34_3_FromString> fromString(String symbol) {
-        return Optional.ofNullable(stringToEnum.get(symbol));
+        return Optional.ofNullable(SymbolTable.STRING_TO_ENUM.get(symbol));
     }
 
-    // EffectiveJava 3rd Edition (>= Java 8)
-    private static final Map<String, Item34_3_FromString> stringToEnum = Stream.of(values()).collect(toMap(Object::toString, e -> e));
-
-    // EffectiveJava 2nd Edition (< Java 8)
-    private static final Map<String, Item34_3_FromString> stringToEnum2 = new HashMap<>();
-
-    static {
-        for (Item34_3_FromString item : values()) {
-            stringToEnum2.put(item.toString(), item);
+    /**
+     * Lazy initialization holder class (Item 83): the map is built on the first call of
+     * fromString, not when the enum is initialized.
+     *
+     * The 3rd Edition builds it with `Stream.of(values()).collect(toMap(Object::toString, e -> e))`.
+     * A plain loop builds the same map without bootstrapping lambdas and streams, which is
+     * what a cold JVM pays for on the first one it meets.
+     */
+    private static final class SymbolTable {
+        static final Map<String, Item34_3_FromString> STRING_TO_ENUM = new HashMap<>();
+
+        static {
+            for (Item34_3_FromString item : values()) {
+                STRING_TO_ENUM.put(item.toString(), item);
+            }
         }
     }
 
 }
-
-
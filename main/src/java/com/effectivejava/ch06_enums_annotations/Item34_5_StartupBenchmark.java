@@ -0,0 +1,161 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item37_NestedEnumMap.Phase2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures what the enum lookup tables cost a cold JVM: the time to initialize
+ * Item34_3_FromString and Phase2.Transition, and the latency of their first lookups, which
+ * now pay for the lazily built tables.
+ *
+ * Every run is a fresh child JVM, once with the default CDS archive of the JDK classes
+ * only and once with an AppCDS archive that also holds these classes. AppCDS needs JDK 10
+ * or later and classes in a jar, so directories on the class path are packed into a
+ * temporary jar first.
+ */
+public class Item34_5_StartupBenchmark {
+
+    private static final String CHILD_ARG = "--child";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(CHILD_ARG)) {
+            child();
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        Path work = Files.createTempDirectory("startup");
+        try {
+            String classPath = jarDirectories(System.getProperty("java.class.path"), work);
+            Path classList = work.resolve("classes.lst");
+            Path archive = work.resolve("app.jsa");
+
+            report("default CDS", runs, classPath);
+
+            boolean dumped = run(classPath, "-Xshare:off", "-XX:DumpLoadedClassList=" + classList) != null
+                && run(classPath, "-Xshare:dump", "-XX:SharedClassListFile=" + classList,
+                "-XX:SharedArchiveFile=" + archive) != null;
+            if (dumped && Files.exists(archive)) {
+                report("AppCDS", runs, classPath, "-XX:SharedArchiveFile=" + archive);
+            } else {
+                System.out.println("AppCDS: archive could not be created on " + System.getProperty("java.version"));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(work)) {
+                files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    // Prints the median of each measurement over runs child JVMs
+    private static void report(String name, int runs, String classPath, String... options)
+            throws IOException, InterruptedException {
+        long[][] samples = new long[5][runs];
+        for (int r = 0; r < runs; r++) {
+            long t0 = System.nanoTime();
+            String line = run(classPath, options);
+            long wall = System.nanoTime() - t0;
+            if (line == null) {
+                throw new IllegalStateException(name + ": child JVM failed");
+            }
+            String[] fields = line.trim().split(" ");
+            for (int i = 0; i < 4; i++) {
+                samples[i][r] = Long.parseLong(fields[i]);
+            }
+            samples[4][r] = wall;
+        }
+        for (long[] s : samples) {
+            Arrays.sort(s);
+        }
+        System.out.printf("%s: FromString init %.1f us, first fromString %.1f us; "
+                + "Transition init %.1f us, first from %.1f us; JVM wall %.1f ms%n", name,
+            samples[0][runs / 2] / 1e3, samples[1][runs / 2] / 1e3,
+            samples[2][runs / 2] / 1e3, samples[3][runs / 2] / 1e3, samples[4][runs / 2] / 1e6);
+    }
+
+    // Runs a child JVM and returns the last line it printed, or null if it failed
+    private static String run(String classPath, String... options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList(options));
+        command.add("-cp");
+        command.add(classPath);
+        boolean dump = Arrays.asList(options).contains("-Xshare:dump");
+        if (!dump) {
+            command.add(Item34_5_StartupBenchmark.class.getName());
+            command.add(CHILD_ARG);
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String last = "";
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = in.readLine()) != null; ) {
+                last = line;
+            }
+        }
+        return process.waitFor() == 0 ? last : null;
+    }
+
+    // Initializes and looks up in a fresh JVM, printing the four times in nanoseconds
+    private static void child() throws ClassNotFoundException {
+        ClassLoader loader = Item34_5_StartupBenchmark.class.getClassLoader();
+
+        long t0 = System.nanoTime();
+        Class.forName(Item34_3_FromString.class.getName(), true, loader);
+        long fromStringInit = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        Item34_3_FromString plus = Item34_3_FromString.PLUS.fromString("+").get();
+        long firstFromString = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        Class.forName(Phase2.Transition.class.getName(), true, loader);
+        long transitionInit = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        Phase2.Transition melt = Phase2.Transition.from(Phase2.SOLID, Phase2.LIQUID);
+        long firstFrom = System.nanoTime() - t0;
+
+        if (plus != Item34_3_FromString.PLUS || melt != Phase2.Transition.MELT) {
+            throw new AssertionError(plus + " " + melt);
+        }
+        System.out.println(fromStringInit + " " + firstFromString + " " + transitionInit + " " + firstFrom);
+    }
+
+    // AppCDS only archives classes loaded from jars
+    private static String jarDirectories(String classPath, Path work) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String entry : classPath.split(File.pathSeparator)) {
+            Path path = Paths.get(entry);
+            if (!Files.isDirectory(path)) {
+                entries.add(entry);
+                continue;
+            }
+            Path jar = work.resolve("classes" + entries.size() + ".jar");
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+                 Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                    out.putNextEntry(new JarEntry(path.relativize(file).toString().replace(File.separatorChar, '/')));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                }
+            }
+            entries.add(jar.toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+}
@@ -0,0 +1,540 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item34_4_StrategyEnum.PayrollDay3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes payroll totals per day for a timesheet too large for one JVM, in local worker
+ * processes.
+ *
+ * A timesheet has one line per shift: `DAY,minutesWorked,payRate`, like `MONDAY,540,20`.
+ * The coordinator cuts the file into byte ranges; a shard owns the lines that start in its
+ * range, so no line is lost or counted twice at a boundary. Workers are child JVMs that
+ * connect back to the coordinator on the loopback interface, take shards one at a time,
+ * compute pay with PayrollDay3 and its PayType strategy, and answer with their totals.
+ *
+ * A shard whose worker fails to start, dies, hangs or breaks the protocol goes back in the
+ * queue, and the worker is replaced, up to MAX_ATTEMPTS per shard. A malformed line fails
+ * the run, since retrying it would fail again. The totals are sums of longs, so they equal
+ * those of a single-process run exactly, whatever the order in which shards finish.
+ */
+public final class Item34_6_ShardedPayroll {
+
+    private static final String WORKER_ARG = "--worker";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int STOP = -1;
+    private static final byte OK = 0;
+    private static final byte BAD_RECORD = 1;
+
+    private static final PayrollDay3[] DAYS = PayrollDay3.values();
+    private static final byte[][] DAY_NAMES = new byte[DAYS.length][];
+
+    static {
+        for (PayrollDay3 day : DAYS) {
+            DAY_NAMES[day.ordinal()] = day.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int workers;
+    private final int timeoutMillis;
+    // Started workers by the token they send when they connect
+    private final Map<Integer, Process> starting = new ConcurrentHashMap<>();
+    private final AtomicInteger nextToken = new AtomicInteger();
+    // For the demo: a worker kills itself on the first attempt at this shard
+    private int crashShard = -1;
+    // The retries of the last compute, for the demo
+    private int lastRetries;
+
+    /**
+     * @param workers       the number of worker processes
+     * @param timeoutMillis how long a shard may take before its worker is presumed hung
+     */
+    public Item34_6_ShardedPayroll(int workers, int timeoutMillis) {
+        if (workers < 1 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("workers: " + workers + ", timeoutMillis: " + timeoutMillis);
+        }
+        this.workers = workers;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Pay and shift count per day.
+     */
+    static final class Totals {
+        private final long[] pay = new long[DAYS.length];
+        private final long[] shifts = new long[DAYS.length];
+
+        void add(PayrollDay3 day, int pay) {
+            this.pay[day.ordinal()] += pay;
+            shifts[day.ordinal()]++;
+        }
+
+        synchronized void merge(Totals other) {
+            for (int i = 0; i < DAYS.length; i++) {
+                pay[i] += other.pay[i];
+                shifts[i] += other.shifts[i];
+            }
+        }
+
+        EnumMap<PayrollDay3, Long> payByDay() {
+            EnumMap<PayrollDay3, Long> result = new EnumMap<>(PayrollDay3.class);
+            for (PayrollDay3 day : DAYS) {
+                result.put(day, pay[day.ordinal()]);
+            }
+            return result;
+        }
+
+        long shifts() {
+            return Arrays.stream(shifts).sum();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Totals && Arrays.equals(pay, ((Totals) o).pay)
+                && Arrays.equals(shifts, ((Totals) o).shifts);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(pay) + Arrays.hashCode(shifts);
+        }
+
+        @Override
+        public String toString() {
+            return payByDay() + " over " + shifts() + " shifts";
+        }
+    }
+
+    private static final class Shard {
+        final int id;
+        final long from;
+        final long to;
+        int attempts;
+
+        Shard(int id, long from, long to) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Computes the totals of timesheet in this JVM, shard after shard.
+     */
+    static Totals computeLocally(Path timesheet, int shardBytes) throws IOException {
+        Totals totals = new Totals();
+        for (Shard shard : split(Files.size(timesheet), shardBytes)) {
+            totals.merge(computeShard(timesheet, shard.from, shard.to));
+        }
+        return totals;
+    }
+
+    /**
+     * Computes the totals of timesheet the plain way, a line at a time, without the shards
+     * or the byte parsing of the other two, to check them against.
+     */
+    static Totals computeByLines(Path timesheet) throws IOException {
+        Totals totals = new Totals();
+        try (BufferedReader r = Files.newBufferedReader(timesheet, StandardCharsets.US_ASCII)) {
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                PayrollDay3 day = PayrollDay3.valueOf(fields[0]);
+                totals.add(day, day.pay(Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Computes the totals of timesheet in worker processes.
+     *
+     * @param shardBytes the size of a shard; a line must fit in 2 GB minus this
+     * @throws StreamCorruptedException if a line is malformed
+     * @throws IOException              if a shard failed MAX_ATTEMPTS times
+     */
+    Totals compute(Path timesheet, int shardBytes) throws IOException, InterruptedException {
+        BlockingQueue<Shard> queue = new LinkedBlockingQueue<>(split(Files.size(timesheet), shardBytes));
+        AtomicInteger remaining = new AtomicInteger(queue.size());
+        Totals totals = new Totals();
+        IOException[] failure = new IOException[1];
+        AtomicInteger retries = new AtomicInteger();
+
+        try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(timeoutMillis);
+            List<Thread> dispatchers = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        dispatch(server, timesheet, queue, remaining, totals, retries);
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                        remaining.set(0); // Stops the other dispatchers
+                    }
+                }, "payroll-dispatcher-" + i);
+                dispatchers.add(t);
+                t.start();
+            }
+            for (Thread t : dispatchers) {
+                t.join();
+            }
+        } finally {
+            // Workers started for an accept that timed out
+            starting.values().forEach(Process::destroyForcibly);
+            starting.clear();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        lastRetries = retries.get();
+        return totals;
+    }
+
+    /**
+     * Keeps one worker busy until no shards remain, replacing it when it fails.
+     */
+    private void dispatch(ServerSocket server, Path timesheet, BlockingQueue<Shard> queue,
+                          AtomicInteger remaining, Totals totals, AtomicInteger retries) throws IOException {
+        WorkerHandle worker = null;
+        try {
+            while (remaining.get() > 0) {
+                Shard shard = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (shard == null) {
+                    continue;
+                }
+                try {
+                    // A worker that can't start or connect in time counts as a failed attempt too
+                    if (worker == null) {
+                        worker = spawn(server);
+                    }
+                    totals.merge(worker.compute(timesheet, shard));
+                    remaining.decrementAndGet();
+                } catch (StreamCorruptedException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (worker != null) {
+                        worker.destroy();
+                        worker = null;
+                    }
+                    if (++shard.attempts >= MAX_ATTEMPTS) {
+                        throw new IOException("Shard " + shard.id + " failed " + MAX_ATTEMPTS + " times", e);
+                    }
+                    retries.incrementAndGet();
+                    queue.add(shard);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            if (worker != null) {
+                worker.close();
+            }
+        }
+    }
+
+    private WorkerHandle spawn(ServerSocket server) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        int token = nextToken.incrementAndGet();
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            Item34_6_ShardedPayroll.class.getName(), WORKER_ARG,
+            Integer.toString(server.getLocalPort()), Integer.toString(token), Integer.toString(crashShard));
+        pb.redirectOutput(ProcessBuilder.Redirect.INHERIT).redirectError(ProcessBuilder.Redirect.INHERIT);
+        starting.put(token, pb.start());
+
+        // Any worker that connects will do, not necessarily the one just started, but its
+        // token tells which process to kill if it fails
+        Socket socket = server.accept();
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            Process process = starting.remove(new DataInputStream(socket.getInputStream()).readInt());
+            if (process == null) {
+                throw new IOException("protocol error");
+            }
+            return new WorkerHandle(process, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Coordinator side of one worker process.
+     */
+    private static final class WorkerHandle {
+        private final Process process;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        WorkerHandle(Process process, Socket socket) throws IOException {
+            this.process = process;
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        Totals compute(Path timesheet, Shard shard) throws IOException {
+            out.writeInt(shard.id);
+            out.writeInt(shard.attempts);
+            out.writeLong(shard.from);
+            out.writeLong(shard.to);
+            out.writeUTF(timesheet.toAbsolutePath().toString());
+            out.flush();
+
+            if (in.readInt() != shard.id) {
+                throw new IOException("protocol error");
+            }
+            byte status = in.readByte();
+            if (status == BAD_RECORD) {
+                throw new StreamCorruptedException(in.readUTF());
+            }
+            if (status != OK) {
+                throw new IOException("protocol error");
+            }
+            Totals totals = new Totals();
+            for (int i = 0; i < DAYS.length; i++) {
+                totals.pay[i] = in.readLong();
+                totals.shifts[i] = in.readLong();
+            }
+            return totals;
+        }
+
+        void close() {
+            try {
+                out.writeInt(STOP);
+                out.flush();
+                process.waitFor(5, TimeUnit.SECONDS);
+            } catch (IOException ignored) {
+                // The worker is already gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            destroy();
+        }
+
+        void destroy() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Worker side: computes shards sent by the coordinator at port until told to stop.
+     */
+    private static void workerLoop(int port, int token, int crashShard) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(token);
+            out.flush();
+            for (int id; (id = in.readInt()) != STOP; ) {
+                int attempt = in.readInt();
+                long from = in.readLong();
+                long to = in.readLong();
+                Path timesheet = Paths.get(in.readUTF());
+                if (id == crashShard && attempt == 0) {
+                    Runtime.getRuntime().halt(1);
+                }
+
+                out.writeInt(id);
+                try {
+                    Totals totals = computeShard(timesheet, from, to);
+                    out.writeByte(OK);
+                    for (int i = 0; i < DAYS.length; i++) {
+                        out.writeLong(totals.pay[i]);
+                        out.writeLong(totals.shifts[i]);
+                    }
+                } catch (StreamCorruptedException e) {
+                    out.writeByte(BAD_RECORD);
+                    out.writeUTF(e.getMessage());
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private static List<Shard> split(long size, int shardBytes) {
+        if (shardBytes < 1) {
+            throw new IllegalArgumentException("shardBytes < 1: " + shardBytes);
+        }
+        List<Shard> shards = new ArrayList<>();
+        for (long from = 0; from < size; from += shardBytes) {
+            shards.add(new Shard(shards.size(), from, Math.min(size, from + shardBytes)));
+        }
+        return shards;
+    }
+
+    /**
+     * Totals the lines that start in [from, to) of timesheet.
+     *
+     * @throws StreamCorruptedException if one of them is malformed
+     */
+    static Totals computeShard(Path timesheet, long from, long to) throws IOException {
+        Totals totals = new Totals();
+        try (FileChannel channel = FileChannel.open(timesheet, StandardOpenOption.READ)) {
+            // One byte before from tells whether a line starts at from
+            long base = Math.max(0, from - 1);
+            long length = Math.min(channel.size() - base, Integer.MAX_VALUE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+            int limit = buffer.limit();
+            int end = (int) (to - base);
+            int pos = (int) (from - base);
+            if (from > 0 && buffer.get(0) != '\n') {
+                while (pos < limit && buffer.get(pos) != '\n') {
+                    pos++;
+                }
+                pos++;
+            }
+            while (pos < end) {
+                int eol = pos;
+                while (eol < limit && buffer.get(eol) != '\n') {
+                    eol++;
+                }
+                if (eol == limit && base + limit < channel.size()) {
+                    throw new IOException("Line at byte " + (base + pos) + " is longer than 2 GB");
+                }
+                int lineEnd = eol > pos && buffer.get(eol - 1) == '\r' ? eol - 1 : eol;
+                if (lineEnd > pos) { // Blank lines are skipped
+                    addLine(buffer, pos, lineEnd, base, totals);
+                }
+                pos = eol + 1;
+            }
+        }
+        return totals;
+    }
+
+    private static void addLine(MappedByteBuffer buffer, int from, int to, long base, Totals totals)
+            throws StreamCorruptedException {
+        int comma = from;
+        while (comma < to && buffer.get(comma) != ',') {
+            comma++;
+        }
+        PayrollDay3 day = day(buffer, from, comma);
+        int comma2 = comma + 1;
+        while (comma2 < to && buffer.get(comma2) != ',') {
+            comma2++;
+        }
+        int minutes = day == null || comma >= to ? -1 : number(buffer, comma + 1, comma2);
+        int payRate = minutes < 0 || comma2 >= to ? -1 : number(buffer, comma2 + 1, to);
+        if (payRate < 0) {
+            throw new StreamCorruptedException("Malformed line at byte " + (base + from));
+        }
+        totals.add(day, day.pay(minutes, payRate));
+    }
+
+    // The day named by the bytes [from, to), or null
+    private static PayrollDay3 day(MappedByteBuffer buffer, int from, int to) {
+        for (int d = 0; d < DAY_NAMES.length; d++) {
+            byte[] name = DAY_NAMES[d];
+            if (name.length == to - from && name[0] == buffer.get(from) && name[1] == buffer.get(from + 1)) {
+                for (int i = 2; i < name.length; i++) {
+                    if (name[i] != buffer.get(from + i)) {
+                        return null;
+                    }
+                }
+                return DAYS[d];
+            }
+        }
+        return null;
+    }
+
+    // The non-negative int in the ASCII digits [from, to), or -1
+    private static int number(MappedByteBuffer buffer, int from, int to) {
+        if (from >= to || to - from > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Writes a timesheet, then totals it in this JVM and in worker processes, one of which
+     * crashes on its first shard.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && WORKER_ARG.equals(args[0])) {
+            workerLoop(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int shardBytes = 8 << 20;
+
+        Path timesheet = Files.createTempFile("timesheet", ".csv");
+        try {
+            Random random = new Random(42);
+            try (BufferedWriter w = Files.newBufferedWriter(timesheet, StandardCharsets.US_ASCII)) {
+                for (int i = 0; i < lines; i++) {
+                    w.write(DAYS[random.nextInt(DAYS.length)] + "," + (240 + random.nextInt(480)) + ","
+                        + (10 + random.nextInt(40)) + "\n");
+                }
+            }
+
+            long t0 = System.nanoTime();
+            Totals local = computeLocally(timesheet, shardBytes);
+            long localMs = (System.nanoTime() - t0) / 1_000_000;
+
+            Item34_6_ShardedPayroll payroll = new Item34_6_ShardedPayroll(workers, 60_000);
+            payroll.crashShard = 1;
+            t0 = System.nanoTime();
+            Totals sharded = payroll.compute(timesheet, shardBytes);
+            long shardedMs = (System.nanoTime() - t0) / 1_000_000;
+
+            Totals expected = computeByLines(timesheet);
+            System.out.println(expected);
+            System.out.printf("%.0f MB: one JVM %d ms, %d workers %d ms with %d retried shards, totals match: %b%n",
+                Files.size(timesheet) / 1e6, localMs, workers, shardedMs, payroll.lastRetries,
+                expected.equals(local) && expected.equals(sharded));
+        } finally {
+            Files.delete(timesheet);
+        }
+    }
+}
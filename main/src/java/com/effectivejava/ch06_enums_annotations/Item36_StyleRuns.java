@@ -0,0 +1,288 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item36_EnumSet.EnumSetText.Style;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The styles of a long text as runs, where EnumSetText.applyStyles knows one set at a time.
+ *
+ * A run is a range of characters with the same styles, kept as a bit field in a TreeMap
+ * from the offset where the run starts. The bit field is internal only; as in Item 36,
+ * styles go in and out as `Set<Style>`. Adjacent runs with equal styles are merged after
+ * every change, so a text of millions of characters styled in a few places is a handful of
+ * entries.
+ *
+ * Changing or querying a range costs O(log n) in the number of runs, plus O(k) for the k
+ * runs in the range. Not thread-safe.
+ */
+public final class Item36_StyleRuns {
+
+    private static final Style[] STYLES = Style.values();
+
+    private final int length;
+    // Run start -> bit field of Style ordinals. Has a key 0 unless the text is empty
+    private final TreeMap<Integer, Integer> runs = new TreeMap<>();
+
+    /**
+     * A text of length characters, all unstyled.
+     */
+    public Item36_StyleRuns(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0: " + length);
+        }
+        this.length = length;
+        if (length > 0) {
+            runs.put(0, 0);
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Adds styles to the characters from (inclusive) to to (exclusive).
+     */
+    public void applyStyles(int from, int to, Set<Style> styles) {
+        int bits = bits(styles);
+        update(from, to, bits, ~0);
+    }
+
+    /**
+     * Removes styles from the characters from (inclusive) to to (exclusive).
+     */
+    public void removeStyles(int from, int to, Set<Style> styles) {
+        update(from, to, 0, ~bits(styles));
+    }
+
+    /**
+     * Replaces the styles of the characters from (inclusive) to to (exclusive) with styles.
+     */
+    public void setStyles(int from, int to, Set<Style> styles) {
+        update(from, to, bits(styles), 0);
+    }
+
+    /**
+     * Returns the styles of the character at offset.
+     */
+    public Set<Style> stylesAt(int offset) {
+        return styles(bitsAt(offset));
+    }
+
+    /**
+     * Returns whether the character at offset has style; allocates nothing.
+     */
+    public boolean hasStyle(int offset, Style style) {
+        return (bitsAt(offset) & 1 << style.ordinal()) != 0;
+    }
+
+    /**
+     * Returns the number of runs.
+     */
+    public int runCount() {
+        return runs.size();
+    }
+
+    /**
+     * Receives runs as offsets and styles.
+     */
+    public interface RunVisitor {
+        void visit(int start, int end, Set<Style> styles);
+    }
+
+    /**
+     * Visits the runs that overlap from (inclusive) to to (exclusive), in order, clipped to
+     * the range.
+     */
+    public void forEachRun(int from, int to, RunVisitor visitor) {
+        checkRange(from, to);
+        if (from == to) {
+            return;
+        }
+        Integer first = runs.floorKey(from);
+        Iterator<Map.Entry<Integer, Integer>> it = runs.tailMap(first, true).entrySet().iterator();
+        Map.Entry<Integer, Integer> run = it.next();
+        while (run != null && run.getKey() < to) {
+            Map.Entry<Integer, Integer> next = it.hasNext() ? it.next() : null;
+            int end = next == null ? length : next.getKey();
+            visitor.visit(Math.max(run.getKey(), from), Math.min(end, to), styles(run.getValue()));
+            run = next;
+        }
+    }
+
+    /**
+     * Returns every run as [start, end) with its styles, for printing.
+     */
+    public List<String> describeRuns() {
+        List<String> result = new ArrayList<>();
+        forEachRun(0, length, (start, end, styles) -> result.add("[" + start + ", " + end + ") " + styles));
+        return result;
+    }
+
+    // Sets the bits of every run in [from, to) to (bits | set) & keep, then merges equal neighbours
+    private void update(int from, int to, int set, int keep) {
+        checkRange(from, to);
+        if (from == to) {
+            return;
+        }
+        split(from);
+        split(to);
+        NavigableMap<Integer, Integer> range = runs.subMap(from, true, to, false);
+        if (keep == 0) {
+            range.clear();
+            runs.put(from, set);
+        } else {
+            for (Map.Entry<Integer, Integer> run : range.entrySet()) {
+                run.setValue((run.getValue() | set) & keep);
+            }
+        }
+
+        // Only the runs from from up to the one starting at to can now equal their predecessor
+        Map.Entry<Integer, Integer> before = runs.lowerEntry(from);
+        int previous = before == null ? -1 : before.getValue();
+        for (Iterator<Integer> it = runs.subMap(from, true, to, true).values().iterator(); it.hasNext(); ) {
+            int bits = it.next();
+            if (bits == previous) {
+                it.remove();
+            } else {
+                previous = bits;
+            }
+        }
+    }
+
+    // Makes a run start at offset, unless offset is the end of the text
+    private void split(int offset) {
+        if (offset < length) {
+            Map.Entry<Integer, Integer> run = runs.floorEntry(offset);
+            if (run.getKey() != offset) {
+                runs.put(offset, run.getValue());
+            }
+        }
+    }
+
+    private int bitsAt(int offset) {
+        if (offset < 0 || offset >= length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length);
+        }
+        return runs.floorEntry(offset).getValue();
+    }
+
+    private void checkRange(int from, int to) {
+        if (from < 0 || from > to || to > length) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + length);
+        }
+    }
+
+    private static int bits(Set<Style> styles) {
+        int bits = 0;
+        for (Style s : styles) {
+            bits |= 1 << s.ordinal();
+        }
+        return bits;
+    }
+
+    private static Set<Style> styles(int bits) {
+        Set<Style> styles = EnumSet.noneOf(Style.class);
+        for (Style s : STYLES) {
+            if ((bits & 1 << s.ordinal()) != 0) {
+                styles.add(s);
+            }
+        }
+        return styles;
+    }
+
+    /**
+     * Styles a text of two million characters in ranges of up to 2,000, then queries it,
+     * with runs and with an EnumSet per character.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int changes = 20_000;
+        int queries = 1_000_000;
+
+        Item36_StyleRuns small = new Item36_StyleRuns(20);
+        small.applyStyles(2, 10, EnumSet.of(Style.BOLD));
+        small.applyStyles(5, 15, EnumSet.of(Style.ITALIC));
+        small.removeStyles(0, 20, EnumSet.of(Style.BOLD, Style.ITALIC));
+        small.applyStyles(4, 8, EnumSet.of(Style.UNDERLINE));
+        small.applyStyles(8, 12, EnumSet.of(Style.UNDERLINE));
+        System.out.println(small.describeRuns());
+
+        for (int round = 0; round < 3; round++) {
+            Random random = new Random(42);
+            int[] froms = new int[changes];
+            int[] tos = new int[changes];
+            List<Set<Style>> sets = new ArrayList<>(changes);
+            for (int i = 0; i < changes; i++) {
+                froms[i] = random.nextInt(n);
+                tos[i] = Math.min(n, froms[i] + random.nextInt(2_000));
+                sets.add(EnumSet.of(STYLES[random.nextInt(STYLES.length)]));
+            }
+            int[] offsets = random.ints(queries, 0, n).toArray();
+
+            long t0 = System.nanoTime();
+            Item36_StyleRuns text = new Item36_StyleRuns(n);
+            for (int i = 0; i < changes; i++) {
+                if (i % 4 == 3) {
+                    text.removeStyles(froms[i], tos[i], sets.get(i));
+                } else {
+                    text.applyStyles(froms[i], tos[i], sets.get(i));
+                }
+            }
+            long runApply = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            long runHits = 0;
+            for (int offset : offsets) {
+                if (text.hasStyle(offset, Style.BOLD)) {
+                    runHits++;
+                }
+            }
+            long runQuery = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Set<Style>[] perChar = new Set[n];
+            for (int i = 0; i < n; i++) {
+                perChar[i] = EnumSet.noneOf(Style.class);
+            }
+            for (int i = 0; i < changes; i++) {
+                for (int c = froms[i]; c < tos[i]; c++) {
+                    if (i % 4 == 3) {
+                        perChar[c].removeAll(sets.get(i));
+                    } else {
+                        perChar[c].addAll(sets.get(i));
+                    }
+                }
+            }
+            long arrayApply = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            long arrayHits = 0;
+            for (int offset : offsets) {
+                if (perChar[offset].contains(Style.BOLD)) {
+                    arrayHits++;
+                }
+            }
+            long arrayQuery = System.nanoTime() - t0;
+
+            boolean agree = runHits == arrayHits;
+            for (int i = 0; i < n && agree; i += 997) {
+                agree = text.stylesAt(i).equals(perChar[i]);
+            }
+            if (round == 2) {
+                System.out.printf("%,d chars, %,d runs: apply %.1f us (EnumSet[] %.1f us), "
+                        + "query %.0f ns (EnumSet[] %.0f ns), agree: %b%n", n, text.runCount(),
+                    runApply / 1e3 / changes, arrayApply / 1e3 / changes,
+                    (double) runQuery / queries, (double) arrayQuery / queries, agree);
+            }
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item37_EnumMap.Plant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Secondary indexes over the enum attributes of rows, one compressed bitmap of row ids per
+ * enum constant, kept in an EnumMap per attribute.
+ *
+ * The bitmaps are container-style, as in Roaring: row ids are split by their high 16 bits,
+ * and each chunk of 65,536 ids is a sorted char array while it holds at most 4,096 ids, or a
+ * 1,024-word bitmap when denser. Rare constants cost two bytes a row, common ones an eighth
+ * of a byte. Queries combine bitmaps with {@link Bitmap#and}, {@link Bitmap#or},
+ * {@link Bitmap#andNot} and {@link #not}, chunk by chunk, and return the matching row ids
+ * through a primitive iterator.
+ *
+ * Row ids are assigned in order by {@link #add}, which updates every index at once; ids
+ * only grow, so an insert appends to the last chunk. Not thread-safe.
+ */
+public final class Item37_BitmapIndex<T> {
+
+    private static final class Attribute<T, E extends Enum<E>> {
+        final Function<? super T, E> getter;
+        final EnumMap<E, Bitmap> bitmaps;
+
+        Attribute(Class<E> type, Function<? super T, E> getter) {
+            this.getter = getter;
+            this.bitmaps = new EnumMap<>(type);
+            for (E constant : type.getEnumConstants()) {
+                bitmaps.put(constant, new Bitmap());
+            }
+        }
+
+        E value(T row, int id) {
+            E value = getter.apply(row);
+            if (value == null) {
+                throw new NullPointerException("Row " + id + " has no " + bitmaps.keySet().iterator().next()
+                    .getDeclaringClass().getSimpleName());
+            }
+            return value;
+        }
+
+        void add(Enum<?> value, int id) {
+            bitmaps.get(value).add(id);
+        }
+    }
+
+    private final Map<Class<?>, Attribute<T, ?>> attributes = new HashMap<>();
+    // The attribute values of the row being added, in the order of attributes
+    private Enum<?>[] values = new Enum<?>[0];
+    private int size;
+
+    /**
+     * Indexes the attribute of type that getter returns for a row. Call before adding rows.
+     *
+     * @throws IllegalStateException if rows were added, or type is already indexed
+     */
+    public <E extends Enum<E>> Item37_BitmapIndex<T> attribute(Class<E> type, Function<? super T, E> getter) {
+        if (size > 0) {
+            throw new IllegalStateException("Attributes must be declared before rows are added");
+        }
+        if (attributes.putIfAbsent(type, new Attribute<>(type, getter)) != null) {
+            throw new IllegalStateException(type.getName() + " is already indexed");
+        }
+        values = new Enum<?>[attributes.size()];
+        return this;
+    }
+
+    /**
+     * Adds a row to every index and returns its id.
+     *
+     * @throws NullPointerException if an indexed attribute of row is null
+     */
+    public int add(T row) {
+        int id = size;
+        // Every value is read before any index changes, so a rejected row leaves no trace
+        int i = 0;
+        for (Attribute<T, ?> attribute : attributes.values()) {
+            values[i++] = attribute.value(row, id);
+        }
+        i = 0;
+        for (Attribute<T, ?> attribute : attributes.values()) {
+            attribute.add(values[i++], id);
+        }
+        size++;
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ids of the rows whose attribute is constant. The bitmap is live: later
+     * rows with that value are added to it.
+     *
+     * @throws IllegalArgumentException if the type of constant is not indexed
+     */
+    public <E extends Enum<E>> Bitmap rows(E constant) {
+        @SuppressWarnings("unchecked")
+        Attribute<T, E> attribute = (Attribute<T, E>) attributes.get(constant.getDeclaringClass());
+        if (attribute == null) {
+            throw new IllegalArgumentException(constant.getDeclaringClass().getName() + " is not indexed");
+        }
+        return attribute.bitmaps.get(constant);
+    }
+
+    /**
+     * Returns the ids of all rows that are not in rows.
+     */
+    public Bitmap not(Bitmap rows) {
+        Bitmap all = new Bitmap();
+        for (int high = 0; high << 16 < size; high++) {
+            int end = Math.min(size - (high << 16), 1 << 16);
+            BitmapContainer c = new BitmapContainer();
+            Arrays.fill(c.words, 0, end >>> 6, -1L);
+            if ((end & 63) != 0) {
+                c.words[end >>> 6] = (1L << end) - 1;
+            }
+            c.cardinality = end;
+            all.append((char) high, c);
+        }
+        return all.andNot(rows);
+    }
+
+    /**
+     * A set of row ids. Bitmaps returned by queries are new and independent of the index.
+     */
+    public static final class Bitmap {
+        private char[] keys = new char[4];
+        private Container[] containers = new Container[4];
+        private int size;
+
+        private Bitmap() {
+        }
+
+        void add(int id) {
+            char high = (char) (id >>> 16);
+            char low = (char) id;
+            int i = size > 0 && keys[size - 1] == high ? size - 1 : Arrays.binarySearch(keys, 0, size, high);
+            if (i >= 0) {
+                containers[i] = containers[i].add(low);
+                return;
+            }
+            i = -i - 1;
+            insert(i, high, new ArrayContainer().add(low));
+        }
+
+        public boolean contains(int id) {
+            int i = Arrays.binarySearch(keys, 0, size, (char) (id >>> 16));
+            return i >= 0 && containers[i].contains((char) id);
+        }
+
+        public int cardinality() {
+            int cardinality = 0;
+            for (int i = 0; i < size; i++) {
+                cardinality += containers[i].cardinality;
+            }
+            return cardinality;
+        }
+
+        public Bitmap and(Bitmap other) {
+            Bitmap result = new Bitmap();
+            for (int i = 0, j = 0; i < size && j < other.size; ) {
+                if (keys[i] < other.keys[j]) {
+                    i++;
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    result.append(keys[i], containers[i++].and(other.containers[j++]));
+                }
+            }
+            return result;
+        }
+
+        public Bitmap or(Bitmap other) {
+            Bitmap result = new Bitmap();
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || i < size && keys[i] < other.keys[j]) {
+                    result.append(keys[i], containers[i++].copy());
+                } else if (i == size || keys[i] > other.keys[j]) {
+                    result.append(other.keys[j], other.containers[j++].copy());
+                } else {
+                    result.append(keys[i], containers[i++].or(other.containers[j++]));
+                }
+            }
+            return result;
+        }
+
+        public Bitmap andNot(Bitmap other) {
+            Bitmap result = new Bitmap();
+            for (int i = 0, j = 0; i < size; ) {
+                if (j == other.size || keys[i] < other.keys[j]) {
+                    result.append(keys[i], containers[i++].copy());
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    result.append(keys[i], containers[i++].andNot(other.containers[j++]));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the ids in increasing order.
+         */
+        public PrimitiveIterator.OfInt iterator() {
+            return new Ids();
+        }
+
+        // Adds a container after the last one, dropping it if empty
+        private void append(char high, Container c) {
+            if (c.cardinality > 0) {
+                insert(size, high, c);
+            }
+        }
+
+        private void insert(int i, char high, Container c) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            keys[i] = high;
+            containers[i] = c;
+            size++;
+        }
+
+        private final class Ids implements PrimitiveIterator.OfInt {
+            private int container = -1;
+            private int high;
+            // Position in an array container, or word index and remaining bits in a bitmap one
+            private int position;
+            private long word;
+            private int next = -1;
+
+            Ids() {
+                advance();
+            }
+
+            private void advance() {
+                while (true) {
+                    if (container >= 0) {
+                        Container c = containers[container];
+                        if (c instanceof ArrayContainer) {
+                            ArrayContainer a = (ArrayContainer) c;
+                            if (position < a.cardinality) {
+                                next = high | a.values[position++];
+                                return;
+                            }
+                        } else {
+                            long[] words = ((BitmapContainer) c).words;
+                            while (word == 0 && ++position < words.length) {
+                                word = words[position];
+                            }
+                            if (word != 0) {
+                                next = high | position << 6 | Long.numberOfTrailingZeros(word);
+                                word &= word - 1;
+                                return;
+                            }
+                        }
+                    }
+                    if (++container >= size) {
+                        next = -1;
+                        return;
+                    }
+                    high = keys[container] << 16;
+                    boolean array = containers[container] instanceof ArrayContainer;
+                    position = array ? 0 : -1;
+                    word = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                int id = next;
+                advance();
+                return id;
+            }
+        }
+    }
+
+    /**
+     * The ids of one chunk, as their low 16 bits.
+     */
+    private abstract static class Container {
+        static final int MAX_ARRAY = 4096;
+
+        int cardinality;
+
+        abstract boolean contains(char low);
+
+        // Returns this or, when it outgrows its kind, a replacement
+        abstract Container add(char low);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract Container copy();
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+
+        ArrayContainer() {
+            values = new char[4];
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int i = cardinality > 0 && low > values[cardinality - 1] ? -cardinality - 1
+                : Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_ARRAY) {
+                return toBitmap().add(low);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer o = (ArrayContainer) other;
+            char[] merged = new char[cardinality + o.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < o.cardinality) {
+                if (j == o.cardinality || i < cardinality && values[i] < o.values[j]) {
+                    merged[n++] = values[i++];
+                } else if (i == cardinality || values[i] > o.values[j]) {
+                    merged[n++] = o.values[j++];
+                } else {
+                    merged[n++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer result = new ArrayContainer(merged, n);
+            return n > MAX_ARRAY ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] result = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    result[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer b = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                b.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            b.cardinality = cardinality;
+            return b;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words = new long[1024];
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long before = words[low >>> 6];
+            words[low >>> 6] = before | 1L << low;
+            if (before != words[low >>> 6]) {
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] & o[i];
+            }
+            return result.recount();
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, words.length);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer a = (ArrayContainer) other;
+                for (int i = 0; i < a.cardinality; i++) {
+                    result.words[a.values[i] >>> 6] |= 1L << a.values[i];
+                }
+            } else {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    result.words[i] |= o[i];
+                }
+            }
+            return result.recount();
+        }
+
+        @Override
+        Container andNot(Container other) {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, words.length);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer a = (ArrayContainer) other;
+                for (int i = 0; i < a.cardinality; i++) {
+                    result.words[a.values[i] >>> 6] &= ~(1L << a.values[i]);
+                }
+            } else {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    result.words[i] &= ~o[i];
+                }
+            }
+            return result.recount();
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, words.length);
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        // Sets the cardinality, and turns a sparse result into an array container
+        private Container recount() {
+            int n = 0;
+            for (long w : words) {
+                n += Long.bitCount(w);
+            }
+            cardinality = n;
+            if (n > MAX_ARRAY) {
+                return this;
+            }
+            char[] values = new char[n];
+            int k = 0;
+            for (int i = 0; i < words.length; i++) {
+                for (long w = words[i]; w != 0; w &= w - 1) {
+                    values[k++] = (char) (i << 6 | Long.numberOfTrailingZeros(w));
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+    }
+
+    // For the benchmark: where a plant is grown, with two attributes besides its life cycle
+    enum Exposure { SUN, PARTIAL_SHADE, SHADE }
+
+    enum Soil { LOAM, SAND, CLAY, CHALK, PEAT }
+
+    private static final class Bed {
+        final Plant plant;
+        final Exposure exposure;
+        final Soil soil;
+
+        Bed(Plant plant, Exposure exposure, Soil soil) {
+            this.plant = plant;
+            this.exposure = exposure;
+            this.soil = soil;
+        }
+    }
+
+    /**
+     * Indexes ten million beds, then runs two queries with the bitmaps and with a stream
+     * filter over the list. Peat is rare, so its bitmap is made of array containers.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Random random = new Random(42);
+        Plant.LifeCycle[] lifeCycles = Plant.LifeCycle.values();
+        Exposure[] exposures = Exposure.values();
+        Plant[] plants = new Plant[1_000];
+        for (int i = 0; i < plants.length; i++) {
+            plants[i] = new Plant("plant" + i, lifeCycles[random.nextInt(lifeCycles.length)]);
+        }
+        List<Bed> beds = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Soil soil = random.nextInt(100) == 0 ? Soil.PEAT : Soil.values()[random.nextInt(4)];
+            beds.add(new Bed(plants[random.nextInt(plants.length)], exposures[random.nextInt(exposures.length)], soil));
+        }
+
+        long t0 = System.nanoTime();
+        Item37_BitmapIndex<Bed> index = new Item37_BitmapIndex<Bed>()
+            .attribute(Plant.LifeCycle.class, b -> b.plant.lifeCycle)
+            .attribute(Exposure.class, b -> b.exposure)
+            .attribute(Soil.class, b -> b.soil);
+        for (Bed b : beds) {
+            index.add(b);
+        }
+        long insertNs = (System.nanoTime() - t0) / n;
+
+        for (int round = 0; round < 5; round++) {
+            t0 = System.nanoTime();
+            long bitmapSum = 0;
+            Bitmap q1 = index.rows(Plant.LifeCycle.ANNUAL).and(index.rows(Exposure.SUN))
+                .and(index.not(index.rows(Soil.CLAY)));
+            for (PrimitiveIterator.OfInt it = q1.iterator(); it.hasNext(); ) {
+                bitmapSum += it.nextInt();
+            }
+            Bitmap q2 = index.rows(Plant.LifeCycle.PERENNIAL).or(index.rows(Plant.LifeCycle.BIENNIAL))
+                .and(index.rows(Soil.PEAT)).andNot(index.rows(Exposure.SHADE));
+            for (PrimitiveIterator.OfInt it = q2.iterator(); it.hasNext(); ) {
+                bitmapSum += it.nextInt();
+            }
+            long bitmapMs = (System.nanoTime() - t0) / 1_000_000;
+
+            t0 = System.nanoTime();
+            long streamSum = IntStream.range(0, n)
+                .filter(i -> {
+                    Bed b = beds.get(i);
+                    return b.plant.lifeCycle == Plant.LifeCycle.ANNUAL && b.exposure == Exposure.SUN
+                        && b.soil != Soil.CLAY;
+                }).asLongStream().sum();
+            streamSum += IntStream.range(0, n)
+                .filter(i -> {
+                    Bed b = beds.get(i);
+                    return b.plant.lifeCycle != Plant.LifeCycle.ANNUAL && b.soil == Soil.PEAT
+                        && b.exposure != Exposure.SHADE;
+                }).asLongStream().sum();
+            long streamMs = (System.nanoTime() - t0) / 1_000_000;
+
+            if (round == 4) {
+                System.out.printf("%,d rows, insert %d ns/row: bitmaps %d ms (%,d + %,d rows), stream filter %d ms, "
+                    + "same rows: %b%n", n, insertNs, bitmapMs, q1.cardinality(), q2.cardinality(), streamMs,
+                    bitmapSum == streamSum);
+            }
+        }
+    }
+}
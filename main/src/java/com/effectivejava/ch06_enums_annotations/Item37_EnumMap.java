@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toSet;
 
@@ -39,7 +40,7 @@ public class Item37_EnumMap {
      * 2) when you access an array that is indexed by an enum’s ordinal, 
      *    it is your responsibility to use the correct int value.
      */
-    private static void ordinalIndexing(List<Plant> garden) {
+    static Set<Plant>[] ordinalIndexing(List<Plant> garden) {
         
         Set<Plant>[] plantsByLifeCycle = (Set<Plant>[]) new Set[Plant.LifeCycle.values().length];
         
@@ -50,19 +51,13 @@ public class Item37_EnumMap {
         for (Plant p : garden) {
             plantsByLifeCycle[p.lifeCycle.ordinal()].add(p);
         }
-
-        // ANNUAL: [Grass]
-        // PERENNIAL: [Tree]
-        // BIENNIAL: []
-        for (int i = 0; i < plantsByLifeCycle.length; i++) {
-            System.out.printf("%s: %s%n", Plant.LifeCycle.values()[i], plantsByLifeCycle[i]);
-        }
+        return plantsByLifeCycle;
     }
 
     /**
      * 2. Using an EnumMap to associate data with an enum
      */
-    private static void enumMap(List<Plant> garden) {
+    static Map<Plant.LifeCycle, Set<Plant>> enumMap(List<Plant> garden) {
         
         Map<Plant.LifeCycle, Set<Plant>> plantsByLifeCycle = new EnumMap<>(Plant.LifeCycle.class);
         
@@ -73,31 +68,26 @@ public class Item37_EnumMap {
         for (Plant p : garden) {
             plantsByLifeCycle.get(p.lifeCycle).add(p);
         }
-
-        // {ANNUAL=[Grass], PERENNIAL=[Tree], BIENNIAL=[]}
-        System.out.println(plantsByLifeCycle);
+        return plantsByLifeCycle;
     }
 
     /**
      * 3. Naive stream-based approach - unlikely to produce an EnumMap!
      */
-    private static void streamMap(List<Plant> garden) {
+    static Map<Plant.LifeCycle, List<Plant>> streamMap(Stream<Plant> garden) {
         // The EnumMap version always makes a nested map for each plant lifecycle,
         // while the stream-based versions only make a nested map if the garden contains one or more plants with that lifecycle.
-
-        // {ANNUAL=[Grass], PERENNIAL=[Tree]}
-        System.out.println(garden.stream().collect(Collectors.groupingBy(p -> p.lifeCycle)));
+        return garden.collect(Collectors.groupingBy(p -> p.lifeCycle));
     }
 
     /**
      *  4. Using a stream and an EnumMap to associate data with an enum
      */
-    private static void streamEnumMap(List<Plant> garden) {
-        // {ANNUAL=[Grass], PERENNIAL=[Tree]}
-        System.out.println(garden.stream().collect(Collectors.groupingBy(
+    static Map<Plant.LifeCycle, Set<Plant>> streamEnumMap(Stream<Plant> garden) {
+        return garden.collect(Collectors.groupingBy(
             p -> p.lifeCycle,
             () -> new EnumMap<>(Plant.LifeCycle.class),
-            toSet())));
+            toSet()));
     }
 
     public static void main(String[] args) {
@@ -105,10 +95,22 @@ public class Item37_EnumMap {
         garden.add(new Plant("Tree", Plant.LifeCycle.PERENNIAL));
         garden.add(new Plant("Grass", Plant.LifeCycle.ANNUAL));
 
-        ordinalIndexing(garden);
-        enumMap(garden);
-        streamMap(garden);
-        streamEnumMap(garden);
+        // ANNUAL: [Grass]
+        // PERENNIAL: [Tree]
+        // BIENNIAL: []
+        Set<Plant>[] plantsByLifeCycle = ordinalIndexing(garden);
+        for (int i = 0; i < plantsByLifeCycle.length; i++) {
+            System.out.printf("%s: %s%n", Plant.LifeCycle.values()[i], plantsByLifeCycle[i]);
+        }
+
+        // {ANNUAL=[Grass], PERENNIAL=[Tree], BIENNIAL=[]}
+        System.out.println(enumMap(garden));
+
+        // {ANNUAL=[Grass], PERENNIAL=[Tree]}
+        System.out.println(streamMap(garden.stream()));
+
+        // {ANNUAL=[Grass], PERENNIAL=[Tree]}
+        System.out.println(streamEnumMap(garden.stream()));
 
     }
 }
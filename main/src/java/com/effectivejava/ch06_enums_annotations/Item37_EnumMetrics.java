@@ -0,0 +1,348 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item34_4_StrategyEnum.PayrollDay3;
+import com.effectivejava.ch06_enums_annotations.Item37_NestedEnumMap.Phase2;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.BasicOperation;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.Operation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts and latency histograms per enum constant, for hot paths.
+ *
+ * Like an EnumMap, the metrics of a constant live at its ordinal in an array, but the
+ * arrays are hidden behind a type-safe API. Counters are LongAdders, which stripe under
+ * contention instead of making every thread fight over one cache line. Latencies go into
+ * fixed log-linear buckets: four linear sub-buckets per power of two of nanoseconds, so a
+ * reported percentile is at most 25% above the true one.
+ *
+ * Instrumentation is opt-in: wrap an Operation, the pay calculation of PayrollDay3 or the
+ * Phase2 transition lookup with one of the `timed` decorators. Recording can also be
+ * switched off at runtime; a disabled decorator costs one predictable branch on a
+ * volatile boolean and allocates nothing.
+ */
+public final class Item37_EnumMetrics<E extends Enum<E>> {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final E[] constants;
+    private final LongAdder[] counts;
+    private final LongAdder[] totalNanos;
+    private final LongAccumulator[] maxNanos;
+    // buckets[ordinal][bucket]
+    private final LongAdder[][] buckets;
+    private volatile boolean enabled = true;
+
+    public Item37_EnumMetrics(String name, Class<E> type) {
+        this.name = name;
+        this.constants = type.getEnumConstants();
+        int n = constants.length;
+        counts = new LongAdder[n];
+        totalNanos = new LongAdder[n];
+        maxNanos = new LongAccumulator[n];
+        buckets = new LongAdder[n][BUCKETS];
+        for (int i = 0; i < n; i++) {
+            counts[i] = new LongAdder();
+            totalNanos[i] = new LongAdder();
+            maxNanos[i] = new LongAccumulator(Math::max, 0);
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[i][b] = new LongAdder();
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records one call of constant that took nanos.
+     */
+    public void record(E constant, long nanos) {
+        int i = constant.ordinal();
+        long n = Math.max(nanos, 0);
+        counts[i].increment();
+        totalNanos[i].add(n);
+        maxNanos[i].accumulate(n);
+        buckets[i][bucket(n)].increment();
+    }
+
+    public long count(E constant) {
+        return counts[constant.ordinal()].sum();
+    }
+
+    /**
+     * Returns an upper bound for the latency below which a fraction q of the recorded calls
+     * of constant fall, or 0 if there are none.
+     */
+    public long percentileNanos(E constant, double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q must be in [0, 1]: " + q);
+        }
+        LongAdder[] histogram = buckets[constant.ordinal()];
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = histogram[b].sum();
+            total += counts[b];
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(b), maxNanos[constant.ordinal()].get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Resets every counter and histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < constants.length; i++) {
+            counts[i].reset();
+            totalNanos[i].reset();
+            maxNanos[i].reset();
+            for (LongAdder bucket : buckets[i]) {
+                bucket.reset();
+            }
+        }
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BUCKET_BITS + 1 bits pick one
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // The largest value that falls in bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Writes one line per constant that was called: metric, constant, count, mean, p50,
+     * p99 and max, in nanoseconds.
+     */
+    public void writeSnapshot(Appendable out) throws IOException {
+        for (E constant : constants) {
+            int i = constant.ordinal();
+            long count = counts[i].sum();
+            if (count == 0) {
+                continue;
+            }
+            out.append(String.format("%s\t%s\t%d\t%d\t%d\t%d\t%d%n", name, constant.name(), count,
+                totalNanos[i].sum() / count, percentileNanos(constant, 0.5), percentileNanos(constant, 0.99),
+                maxNanos[i].get()));
+        }
+    }
+
+    /**
+     * Replaces file with a timestamped snapshot of all the given metrics. The snapshot is
+     * written to a temporary file first, so readers never see a partial one.
+     */
+    public static void dump(Path file, Item37_EnumMetrics<?>... metrics) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.append("# ").append(Instant.now().toString()).append(System.lineSeparator());
+                out.append("# metric\tconstant\tcount\tmean_ns\tp50_ns\tp99_ns\tmax_ns").append(System.lineSeparator());
+                for (Item37_EnumMetrics<?> m : metrics) {
+                    m.writeSnapshot(out);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Dumps the metrics to file every period from a daemon thread, until the returned
+     * executor is shut down. A dump that fails is reported on stderr, and the next one is
+     * tried on schedule.
+     */
+    public static ScheduledExecutorService scheduleDumps(Path file, long period, TimeUnit unit,
+                                                         Item37_EnumMetrics<?>... metrics) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "enum-metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        // An exception would cancel every later dump, so a failed one is only reported
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                dump(file, metrics);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("enum-metrics-dump: " + file + ": " + e);
+            }
+        }, period, period, unit);
+        return executor;
+    }
+
+    // Decorators
+
+    /**
+     * Returns an Operation that records every apply of op.
+     */
+    public static <T extends Enum<T> & Operation> Operation timed(T op, Item37_EnumMetrics<T> metrics) {
+        return (x, y) -> {
+            if (!metrics.enabled) {
+                return op.apply(x, y);
+            }
+            long t0 = System.nanoTime();
+            double result = op.apply(x, y);
+            metrics.record(op, System.nanoTime() - t0);
+            return result;
+        };
+    }
+
+    interface PayCalculator {
+        int pay(PayrollDay3 day, int minutesWorked, int payRate);
+    }
+
+    /**
+     * Returns a PayCalculator that calls PayrollDay3.pay and records it per day.
+     */
+    static PayCalculator timedPay(Item37_EnumMetrics<PayrollDay3> metrics) {
+        return (day, minutesWorked, payRate) -> {
+            if (!metrics.enabled) {
+                return day.pay(minutesWorked, payRate);
+            }
+            long t0 = System.nanoTime();
+            int pay = day.pay(minutesWorked, payRate);
+            metrics.record(day, System.nanoTime() - t0);
+            return pay;
+        };
+    }
+
+    public interface TransitionLookup {
+        Phase2.Transition from(Phase2 from, Phase2 to);
+    }
+
+    /**
+     * Returns a TransitionLookup that calls Phase2.Transition.from and records it per
+     * transition found. Lookups of a phase to itself find none and are not recorded.
+     */
+    public static TransitionLookup timedTransitions(Item37_EnumMetrics<Phase2.Transition> metrics) {
+        return (from, to) -> {
+            if (!metrics.enabled) {
+                return Phase2.Transition.from(from, to);
+            }
+            long t0 = System.nanoTime();
+            Phase2.Transition transition = Phase2.Transition.from(from, to);
+            if (transition != null) {
+                metrics.record(transition, System.nanoTime() - t0);
+            }
+            return transition;
+        };
+    }
+
+    /**
+     * Times decorated operations enabled and disabled against undecorated ones, reports the
+     * allocation of the disabled path, and prints a snapshot of all three metrics.
+     */
+    public static void main(String[] args) throws IOException {
+        Item37_EnumMetrics<BasicOperation> operations = new Item37_EnumMetrics<>("operation", BasicOperation.class);
+        Item37_EnumMetrics<PayrollDay3> payroll = new Item37_EnumMetrics<>("payroll", PayrollDay3.class);
+        Item37_EnumMetrics<Phase2.Transition> transitions = new Item37_EnumMetrics<>("transition", Phase2.Transition.class);
+
+        BasicOperation[] ops = BasicOperation.values();
+        Operation[] timedOps = new Operation[ops.length];
+        for (BasicOperation op : ops) {
+            timedOps[op.ordinal()] = timed(op, operations);
+        }
+        PayCalculator pay = timedPay(payroll);
+        TransitionLookup lookup = timedTransitions(transitions);
+
+        Random random = new Random(42);
+        int[] opIndex = random.ints(1 << 12, 0, ops.length).toArray();
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int rounds = 2_000;
+
+        for (int round = 0; round < 5; round++) {
+            double sink = 0;
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i : opIndex) {
+                    sink += ops[i].apply(r, 3);
+                }
+            }
+            long plain = System.nanoTime() - t0;
+
+            operations.setEnabled(false);
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i : opIndex) {
+                    sink += timedOps[i].apply(r, 3);
+                }
+            }
+            long disabled = System.nanoTime() - t0;
+            bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+            operations.setEnabled(true);
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i : opIndex) {
+                    sink += timedOps[i].apply(r, 3);
+                }
+            }
+            long enabled = System.nanoTime() - t0;
+
+            double calls = (double) rounds * opIndex.length;
+            System.out.printf("plain %.2f ns, disabled %.2f ns (%d bytes allocated), enabled %.2f ns (%.0f)%n",
+                plain / calls, disabled / calls, bytes, enabled / calls, sink);
+        }
+
+        PayrollDay3[] days = PayrollDay3.values();
+        Phase2[] phases = Phase2.values();
+        for (int i = 0; i < 1_000_000; i++) {
+            pay.pay(days[i % days.length], 400 + i % 200, 20);
+            lookup.from(phases[i % phases.length], phases[(i / phases.length) % phases.length]);
+        }
+        StringBuilder snapshot = new StringBuilder();
+        operations.writeSnapshot(snapshot);
+        payroll.writeSnapshot(snapshot);
+        transitions.writeSnapshot(snapshot);
+        System.out.print(snapshot);
+    }
+}
@@ -2,10 +2,6 @@ package com.effectivejava.ch06_enums_annotations;
 
 import java.util.EnumMap;
 import java.util.Map;
-import java.util.stream.Stream;
-
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toMap;
 
 public class Item37_NestedEnumMap {
 
@@ -66,26 +62,34 @@ public class Item37_NestedEnumMap {
                 this.to = to;
             }
 
-            // Initialize the phase transition map
-            private static final Map<Phase2, Map<Phase2, Transition>> m = Stream.of(values()).collect(groupingBy(
-                t -> t.from,
-                () -> new EnumMap<>(Phase2.class),
-                toMap(t -> t.to, t -> t, (x, y) -> y, () -> new EnumMap<>(Phase2.class))));
+            public static Transition from(Phase2 from, Phase2 to) {
+                return TransitionTable.m.get(from).get(to);
+            }
 
-            // Initialize the phase transition map (< Java8)
-            private static final Map<Phase2, Map<Phase2, Transition>> m2 = new EnumMap<>(Phase2.class);
-            static {
-                for (Phase2 p : Phase2.values()) {
-                    m2.put(p, new EnumMap<>(Phase2.class));
-                }
-                for (Transition trans: Transition.values()) {
-                    m2.get(trans.from).put(trans.to, trans);
+            /**
+             * Lazy initialization holder class (Item 83), so the map is built on the first
+             * lookup instead of when Transition is initialized. The 3rd Edition builds it with
+             *
+             * <pre>
+             * Stream.of(values()).collect(groupingBy(t -> t.from,
+             *     () -> new EnumMap<>(Phase2.class),
+             *     toMap(t -> t.to, t -> t, (x, y) -> y, () -> new EnumMap<>(Phase2.class))))
+             * </pre>
+             *
+             * The pre-Java 8 loop builds the same map without bootstrapping lambdas and streams.
+             */
+            private static final class TransitionTable {
+                static final Map<Phase2, Map<Phase2, Transition>> m = new EnumMap<>(Phase2.class);
+
+                static {
+                    for (Phase2 p : Phase2.values()) {
+                        m.put(p, new EnumMap<>(Phase2.class));
+                    }
+                    for (Transition trans : Transition.values()) {
+                        m.get(trans.from).put(trans.to, trans);
+                    }
                 }
             }
-            
-            public static Transition from(Phase2 from, Phase2 to) {
-                return m.get(from).get(to);
-            }
         }
     }
 }
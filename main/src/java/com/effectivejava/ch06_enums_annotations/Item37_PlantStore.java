@@ -0,0 +1,348 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item37_EnumMap.Plant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Append-only, memory-mapped store of plants, grouped by life cycle on disk.
+ *
+ * Each LifeCycle has its own segment file holding the name ids of its plants, 4 bytes
+ * each, so reading one life cycle is a sequential scan of one file. Names are stored
+ * once, in a string table: `names.dat` holds the UTF-8 bytes and `names.idx` the offset of
+ * each id. Every file starts with a header whose record count is updated after the records
+ * it covers, so a writer process that crashes leaves at most an ignored tail: its writes are
+ * already in the page cache. That order doesn't survive an OS crash or power loss, since
+ * the OS writes dirty pages back in any order. Only what {@link #force()} has returned for
+ * is safe from those.
+ *
+ * Reopening maps the files and returns; nothing is read until it is used. The EnumMap
+ * view of {@link #byLifeCycle} reads a plant from the mapped segment when it is asked
+ * for, and decodes each distinct name once. One writer at a time; a file is limited to
+ * 2 GB by the int positions of MappedByteBuffer.
+ */
+public final class Item37_PlantStore implements Closeable {
+
+    private static final int SEGMENT_MAGIC = 0x504c5331; // PLS1
+    private static final int NAMES_MAGIC = 0x504c4e31;   // PLN1
+    private static final int INDEX_MAGIC = 0x504c4931;   // PLI1
+
+    private final EnumMap<Plant.LifeCycle, MappedFile> segments = new EnumMap<>(Plant.LifeCycle.class);
+    private final MappedFile names;
+    private final MappedFile index;
+
+    // Decoded names by id, filled in on first use
+    private String[] decoded = new String[0];
+    // Built on the first add after opening, from the names already stored
+    private Map<String, Integer> ids;
+    private boolean closed;
+
+    private Item37_PlantStore(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (Plant.LifeCycle lc : Plant.LifeCycle.values()) {
+            segments.put(lc, new MappedFile(dir.resolve(lc.name().toLowerCase() + ".seg"), SEGMENT_MAGIC));
+        }
+        names = new MappedFile(dir.resolve("names.dat"), NAMES_MAGIC);
+        index = new MappedFile(dir.resolve("names.idx"), INDEX_MAGIC);
+    }
+
+    /**
+     * Opens the store in dir, creating it if it doesn't exist.
+     *
+     * @throws StreamCorruptedException if a file in dir is not part of a store
+     */
+    public static Item37_PlantStore open(Path dir) throws IOException {
+        return new Item37_PlantStore(dir);
+    }
+
+    /**
+     * Appends a plant to the segment of its life cycle.
+     */
+    public void add(Plant plant) throws IOException {
+        checkOpen();
+        MappedFile segment = segments.get(plant.lifeCycle);
+        int id = intern(plant.name);
+        long count = segment.count();
+        int at = MappedFile.HEADER + Math.toIntExact(count * Integer.BYTES);
+        segment.ensure(at + Integer.BYTES);
+        segment.buffer.putInt(at, id);
+        segment.setCount(count + 1);
+    }
+
+    public void addAll(Iterable<Plant> plants) throws IOException {
+        for (Plant p : plants) {
+            add(p);
+        }
+    }
+
+    public int size(Plant.LifeCycle lifeCycle) {
+        checkOpen();
+        return (int) segments.get(lifeCycle).count();
+    }
+
+    /**
+     * Returns the name id of the plant at position i of a life cycle.
+     */
+    public int nameId(Plant.LifeCycle lifeCycle, int i) {
+        checkOpen();
+        MappedFile segment = segments.get(lifeCycle);
+        if (i < 0 || i >= segment.count()) {
+            throw new IndexOutOfBoundsException("index: " + i + ", size: " + segment.count());
+        }
+        return segment.buffer.getInt(MappedFile.HEADER + i * Integer.BYTES);
+    }
+
+    /**
+     * Returns the name with id, decoding it from the string table the first time.
+     */
+    public String name(int id) {
+        checkOpen();
+        long count = index.count();
+        if (id < 0 || id >= count) {
+            throw new IndexOutOfBoundsException("name id: " + id + ", names: " + count);
+        }
+        if (id >= decoded.length) {
+            decoded = Arrays.copyOf(decoded, (int) Math.max(count, decoded.length * 2L));
+        }
+        String name = decoded[id];
+        if (name == null) {
+            int offset = (int) index.buffer.getLong(MappedFile.HEADER + id * Long.BYTES);
+            int length = names.buffer.getInt(offset);
+            ByteBuffer bytes = names.buffer.duplicate();
+            bytes.position(offset + Integer.BYTES).limit(offset + Integer.BYTES + length);
+            name = StandardCharsets.UTF_8.decode(bytes).toString();
+            decoded[id] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Returns a live view of the store: one list per life cycle, reading its plants from
+     * the mapped segment on access. The lists see later additions.
+     */
+    public EnumMap<Plant.LifeCycle, List<Plant>> byLifeCycle() {
+        checkOpen();
+        EnumMap<Plant.LifeCycle, List<Plant>> view = new EnumMap<>(Plant.LifeCycle.class);
+        for (Plant.LifeCycle lc : Plant.LifeCycle.values()) {
+            view.put(lc, new SegmentList(lc));
+        }
+        return view;
+    }
+
+    private final class SegmentList extends AbstractList<Plant> implements RandomAccess {
+        private final Plant.LifeCycle lifeCycle;
+
+        SegmentList(Plant.LifeCycle lifeCycle) {
+            this.lifeCycle = lifeCycle;
+        }
+
+        @Override
+        public Plant get(int i) {
+            return new Plant(name(nameId(lifeCycle, i)), lifeCycle);
+        }
+
+        @Override
+        public int size() {
+            return Item37_PlantStore.this.size(lifeCycle);
+        }
+    }
+
+    /**
+     * Writes the mapped changes through to the storage device.
+     */
+    public void force() {
+        checkOpen();
+        for (MappedFile segment : segments.values()) {
+            segment.buffer.force();
+        }
+        names.buffer.force();
+        index.buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MappedFile segment : segments.values()) {
+            segment.close();
+        }
+        names.close();
+        index.close();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private int intern(String name) throws IOException {
+        if (ids == null) {
+            ids = new HashMap<>();
+            for (int id = 0; id < index.count(); id++) {
+                ids.put(name(id), id);
+            }
+        }
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long used = names.count();
+        int offset = MappedFile.HEADER + Math.toIntExact(used);
+        names.ensure((long) offset + Integer.BYTES + bytes.length);
+        names.buffer.putInt(offset, bytes.length);
+        ByteBuffer target = names.buffer.duplicate();
+        target.position(offset + Integer.BYTES);
+        target.put(bytes);
+
+        int id = (int) index.count();
+        int at = MappedFile.HEADER + Math.toIntExact(id * (long) Long.BYTES);
+        index.ensure(at + Long.BYTES);
+        index.buffer.putLong(at, offset);
+
+        // Commit the bytes before the id that points at them
+        names.setCount(used + Integer.BYTES + bytes.length);
+        index.setCount(id + 1);
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * A file mapped in full, starting with a header of a magic number and a count: records
+     * for a segment and the index, bytes for the names.
+     */
+    private static final class MappedFile {
+        static final int HEADER = 16;
+        private static final int INITIAL_SIZE = 64 << 10;
+
+        private final Path path;
+        private final FileChannel channel;
+        MappedByteBuffer buffer;
+
+        MappedFile(Path path, int magic) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size == 0) {
+                map(INITIAL_SIZE);
+                buffer.putInt(0, magic);
+                buffer.putLong(8, 0);
+            } else if (size < HEADER || size > Integer.MAX_VALUE) {
+                channel.close();
+                throw new StreamCorruptedException(path + ": bad size " + size);
+            } else {
+                map(size);
+                if (buffer.getInt(0) != magic) {
+                    channel.close();
+                    throw new StreamCorruptedException(path + ": bad magic");
+                }
+            }
+        }
+
+        long count() {
+            return buffer.getLong(8);
+        }
+
+        void setCount(long count) {
+            buffer.putLong(8, count);
+        }
+
+        // Grows the mapping, and with it the file, to hold at least bytes
+        void ensure(long bytes) throws IOException {
+            if (bytes <= buffer.capacity()) {
+                return;
+            }
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IOException(path + " would exceed 2 GB");
+            }
+            map(Math.min(Integer.MAX_VALUE, Math.max(bytes, buffer.capacity() * 2L)));
+        }
+
+        private void map(long size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Stores a garden of millions of plants, then reopens it and reads one life cycle.
+     */
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 3_000_000;
+        Random random = new Random(42);
+        Plant.LifeCycle[] lifeCycles = Plant.LifeCycle.values();
+        List<Plant> garden = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            garden.add(new Plant("plant" + random.nextInt(20_000), lifeCycles[random.nextInt(lifeCycles.length)]));
+        }
+
+        Path dir = Files.createTempDirectory("plants");
+        try {
+            long t0 = System.nanoTime();
+            try (Item37_PlantStore store = open(dir)) {
+                store.addAll(garden);
+            }
+            long write = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            try (Item37_PlantStore store = open(dir)) {
+                EnumMap<Plant.LifeCycle, List<Plant>> byLifeCycle = store.byLifeCycle();
+                long reopen = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                List<Plant> annuals = byLifeCycle.get(Plant.LifeCycle.ANNUAL);
+                long length = 0;
+                for (Plant p : annuals) {
+                    length += p.name.length();
+                }
+                long scan = System.nanoTime() - t0;
+
+                Map<Plant.LifeCycle, Set<Plant>> inMemory = Item37_EnumMap.enumMap(garden);
+                boolean sizesMatch = true;
+                for (Plant.LifeCycle lc : lifeCycles) {
+                    sizesMatch &= inMemory.get(lc).size() == byLifeCycle.get(lc).size();
+                }
+
+                long bytes;
+                try (Stream<Path> files = Files.list(dir)) {
+                    bytes = files.mapToLong(p -> p.toFile().length()).sum();
+                }
+                System.out.printf("%,d plants: write %.0f ms, reopen %.2f ms, scan %,d annuals %.0f ms (%d), "
+                        + "%.1f MB on disk, sizes match: %b%n", n, write / 1e6, reopen / 1e6, annuals.size(),
+                    scan / 1e6, length, bytes / 1e6, sizesMatch);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(p -> p.toFile().delete());
+            }
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.Operation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Evaluates Operations for other processes over a local TCP socket.
+ *
+ * A request is `int id, byte length, length bytes of UTF-8 symbol, double x, double y`; a
+ * response is `int id, byte status, double result`, big-endian, with status {@link #OK},
+ * {@link #UNKNOWN_SYMBOL} or {@link #EVALUATION_FAILED}, the last two with a NaN result.
+ * Symbols are the toString() of the operations, resolved through an
+ * {@link Item38_OperationRegistry}. Clients may pipeline requests; responses carry the
+ * request id and may come back out of order.
+ *
+ * One selector thread does all the socket I/O. It gathers complete requests from every
+ * connection into a batch, and keeps gathering for up to the linger time while more
+ * arrive, so requests that arrive close together are evaluated together. Batches are
+ * evaluated on virtual threads when the JDK has them (Java 21+), otherwise on a small
+ * pool, and handed back to the selector thread to write the responses, which then reuses
+ * them. A connection whose unsent responses pass {@link #MAX_UNSENT_BYTES}, because its
+ * client doesn't read them, isn't read from until they drain. A failed accept or a broken
+ * connection is logged or dropped; it doesn't stop the selector thread.
+ */
+public final class Item38_EvaluationServer implements Closeable {
+
+    public static final byte OK = 0;
+    public static final byte UNKNOWN_SYMBOL = 1;
+    // The operation threw
+    public static final byte EVALUATION_FAILED = 2;
+
+    static final int MAX_UNSENT_BYTES = 1 << 20;
+
+    static final int RESPONSE_BYTES = Integer.BYTES + 1 + Double.BYTES;
+    private static final int REQUEST_FIXED_BYTES = Integer.BYTES + 1 + 2 * Double.BYTES;
+
+    private final Item38_OperationRegistry registry;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService evaluators;
+    private final Thread ioThread;
+    private final Queue<Batch> completed = new ConcurrentLinkedQueue<>();
+    // Written batches, for the selector thread to fill again
+    private final Queue<Batch> free = new ArrayDeque<>();
+    private final List<Connection> dirty = new ArrayList<>();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private volatile boolean running = true;
+
+    private Batch pending;
+    private long pendingSince;
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        ByteBuffer out = ByteBuffer.allocate(64 << 10);
+        boolean dirty;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    // Requests in parallel arrays, so a batch is a handful of objects whatever its size
+    private static final class Batch {
+        final Connection[] connections;
+        final int[] ids;
+        final Operation[] operations;
+        final double[] xs;
+        final double[] ys;
+        final double[] results;
+        final byte[] statuses;
+        int size;
+
+        Batch(int capacity) {
+            connections = new Connection[capacity];
+            ids = new int[capacity];
+            operations = new Operation[capacity];
+            xs = new double[capacity];
+            ys = new double[capacity];
+            results = new double[capacity];
+            statuses = new byte[capacity];
+        }
+
+        // Drops the references, so a free batch doesn't keep closed connections alive
+        void clear() {
+            Arrays.fill(connections, 0, size, null);
+            Arrays.fill(operations, 0, size, null);
+            size = 0;
+        }
+
+        void evaluate() {
+            for (int i = 0; i < size; i++) {
+                Operation op = operations[i];
+                if (op == null) {
+                    results[i] = Double.NaN;
+                    statuses[i] = UNKNOWN_SYMBOL;
+                    continue;
+                }
+                // A plugin operation may throw; that fails its own request only
+                try {
+                    results[i] = op.apply(xs[i], ys[i]);
+                    statuses[i] = OK;
+                } catch (RuntimeException e) {
+                    results[i] = Double.NaN;
+                    statuses[i] = EVALUATION_FAILED;
+                }
+            }
+        }
+    }
+
+    private Item38_EvaluationServer(InetSocketAddress address, Item38_OperationRegistry registry,
+                                    int maxBatch, long lingerNanos, int threads) throws IOException {
+        this.registry = registry;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = lingerNanos;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        evaluators = newEvaluators(threads);
+        ioThread = new Thread(this::ioLoop, "evaluation-server-io");
+        ioThread.start();
+    }
+
+    /**
+     * Starts a server on address.
+     *
+     * @param maxBatch    the most requests evaluated together
+     * @param lingerNanos how long to wait for more requests before evaluating a batch
+     * @param threads     evaluator threads, when virtual threads aren't available
+     */
+    public static Item38_EvaluationServer start(InetSocketAddress address, Item38_OperationRegistry registry,
+                                                int maxBatch, long lingerNanos, int threads) throws IOException {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch < 1: " + maxBatch);
+        }
+        return new Item38_EvaluationServer(address, registry, maxBatch, lingerNanos, threads);
+    }
+
+    public InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Returns the average number of requests per evaluated batch.
+     */
+    public double averageBatchSize() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) requests.sum() / b;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is Java 21, so it is looked up reflectively
+    private static ExecutorService newEvaluators(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "evaluation-server-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void ioLoop() {
+        try {
+            while (running) {
+                if (pending == null) {
+                    selector.select();
+                } else if (System.nanoTime() - pendingSince < lingerNanos && pending.size < maxBatch) {
+                    // Linger for more requests; select(timeout) only has millisecond resolution
+                    if (selector.selectNow() == 0 && completed.isEmpty()) {
+                        LockSupport.parkNanos(Math.min(lingerNanos / 4, 20_000));
+                    }
+                } else {
+                    dispatch();
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(c);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(c);
+                    }
+                }
+                writeCompleted();
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+        } catch (IOException e) {
+            // Typically out of file descriptors; back off rather than spin on the ready key
+            System.err.println("evaluation-server: accept failed: " + e);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void close(Connection c) {
+        c.key.cancel();
+        closeQuietly(c.channel);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to release
+        }
+    }
+
+    private void read(Connection c) {
+        int n;
+        try {
+            n = c.channel.read(c.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(c);
+            return;
+        }
+        ByteBuffer in = c.in;
+        in.flip();
+        while (in.remaining() >= REQUEST_FIXED_BYTES) {
+            int start = in.position();
+            int length = in.get(start + Integer.BYTES) & 0xFF;
+            if (in.remaining() < REQUEST_FIXED_BYTES + length) {
+                break;
+            }
+            int id = in.getInt();
+            in.get();
+            Operation op;
+            if (length == 1) {
+                op = registry.lookup((char) (in.get() & 0xFF));
+            } else {
+                byte[] symbol = new byte[length];
+                in.get(symbol);
+                op = registry.lookup(new String(symbol, StandardCharsets.UTF_8));
+            }
+            add(c, id, op, in.getDouble(), in.getDouble());
+        }
+        in.compact();
+    }
+
+    private void add(Connection c, int id, Operation op, double x, double y) {
+        if (pending == null) {
+            pending = free.poll();
+            if (pending == null) {
+                pending = new Batch(maxBatch);
+            }
+            pendingSince = System.nanoTime();
+        }
+        Batch b = pending;
+        b.connections[b.size] = c;
+        b.ids[b.size] = id;
+        b.operations[b.size] = op;
+        b.xs[b.size] = x;
+        b.ys[b.size] = y;
+        b.size++;
+        if (b.size == maxBatch) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        Batch b = pending;
+        pending = null;
+        batches.increment();
+        requests.add(b.size);
+        evaluators.execute(() -> {
+            try {
+                b.evaluate();
+            } finally {
+                completed.add(b);
+                selector.wakeup();
+            }
+        });
+    }
+
+    private void writeCompleted() {
+        for (Batch b; (b = completed.poll()) != null; ) {
+            for (int i = 0; i < b.size; i++) {
+                Connection c = b.connections[i];
+                if (!c.key.isValid()) {
+                    continue;
+                }
+                if (c.out.remaining() < RESPONSE_BYTES) {
+                    ByteBuffer bigger = ByteBuffer.allocate(c.out.capacity() * 2);
+                    c.out.flip();
+                    c.out = bigger.put(c.out);
+                }
+                c.out.putInt(b.ids[i]).put(b.statuses[i]).putDouble(b.results[i]);
+                if (!c.dirty) {
+                    c.dirty = true;
+                    dirty.add(c);
+                }
+            }
+            b.clear();
+            free.add(b);
+        }
+        for (Connection c : dirty) {
+            c.dirty = false;
+            if (c.key.isValid()) {
+                flush(c);
+            }
+        }
+        dirty.clear();
+    }
+
+    private void flush(Connection c) {
+        c.out.flip();
+        try {
+            c.channel.write(c.out);
+        } catch (IOException e) {
+            close(c);
+            return;
+        } finally {
+            c.out.compact();
+        }
+        // Stop reading requests from a client that doesn't read its responses
+        int unsent = c.out.position();
+        int ops = (unsent > 0 ? SelectionKey.OP_WRITE : 0) | (unsent < MAX_UNSENT_BYTES ? SelectionKey.OP_READ : 0);
+        if (c.key.interestOps() != ops) {
+            c.key.interestOps(ops);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        evaluators.shutdown();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Runs connections clients, each with window requests in flight, for seconds against
+     * a local server, and reports throughput, latency percentiles and the batch size.
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long lingerNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 3 ? Long.parseLong(args[3]) : 100);
+
+        InetSocketAddress local = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        try (Item38_EvaluationServer server = start(local, Item38_OperationRegistry.withBuiltIns(), 1024,
+                lingerNanos, Math.max(1, Runtime.getRuntime().availableProcessors() / 2))) {
+            InetSocketAddress address = server.address();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            LoadClient[] clients = new LoadClient[connections];
+            Thread[] threads = new Thread[connections];
+            for (int i = 0; i < connections; i++) {
+                clients[i] = new LoadClient(address, window, deadline);
+                threads[i] = new Thread(clients[i]);
+                threads[i].start();
+            }
+            long total = 0;
+            long unknown = 0;
+            long[] latencies = new long[0];
+            for (int i = 0; i < connections; i++) {
+                threads[i].join();
+                if (clients[i].failure != null) {
+                    throw clients[i].failure;
+                }
+                total += clients[i].count;
+                unknown += clients[i].unknown;
+                int from = latencies.length;
+                latencies = Arrays.copyOf(latencies, from + clients[i].count);
+                System.arraycopy(clients[i].latencies, 0, latencies, from, clients[i].count);
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%d connections x %d in flight, linger %d us: %,.0f requests/s, "
+                    + "p50 %.1f us, p99 %.1f us, max %.1f us, average batch %.1f, unknown symbols %d%n",
+                connections, window, TimeUnit.NANOSECONDS.toMicros(lingerNanos), (double) total / seconds,
+                percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3,
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e3, server.averageBatchSize(), unknown);
+        }
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, (long) (q * sorted.length))];
+    }
+
+    /**
+     * Load generator: keeps window requests in flight on one blocking connection.
+     */
+    static final class LoadClient implements Runnable {
+        private static final String[] SYMBOLS = {"+", "-", "*", "/", "^", "%"};
+        private static final int IDS = 1 << 16;
+
+        private final InetSocketAddress address;
+        private final int window;
+        private final long deadline;
+        private final long[] sentAt = new long[IDS];
+        long[] latencies = new long[1 << 16];
+        int count;
+        int unknown;
+        Exception failure;
+
+        LoadClient(InetSocketAddress address, int window, long deadline) {
+            this.address = address;
+            this.window = window;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ByteBuffer out = ByteBuffer.allocate(window * (REQUEST_FIXED_BYTES + 1));
+                ByteBuffer in = ByteBuffer.allocate(64 << 10);
+                int nextId = 0;
+                int inFlight = 0;
+                for (; inFlight < window; inFlight++) {
+                    request(out, nextId++);
+                }
+                send(channel, out);
+                while (inFlight > 0) {
+                    if (channel.read(in) < 0) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    in.flip();
+                    boolean open = System.nanoTime() < deadline;
+                    while (in.remaining() >= RESPONSE_BYTES) {
+                        int id = in.getInt();
+                        if (in.get() != OK) {
+                            unknown++;
+                        }
+                        in.getDouble();
+                        record(System.nanoTime() - sentAt[id & (IDS - 1)]);
+                        inFlight--;
+                        if (open) {
+                            request(out, nextId++);
+                            inFlight++;
+                        }
+                    }
+                    in.compact();
+                    send(channel, out);
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private void request(ByteBuffer out, int id) {
+            byte[] symbol = SYMBOLS[id % SYMBOLS.length].getBytes(StandardCharsets.UTF_8);
+            out.putInt(id).put((byte) symbol.length).put(symbol).putDouble(id % 100).putDouble(3);
+            sentAt[id & (IDS - 1)] = System.nanoTime();
+        }
+
+        private static void send(SocketChannel channel, ByteBuffer out) throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.BasicOperation;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.ExtendedOperation;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.Operation;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bounded, concurrent cache of Operation results, keyed by (operation, x, y).
+ *
+ * Entries live in one long array, so nothing is boxed: an entry is four longs, the
+ * operation as a small id assigned by {@link #memoize}, the raw bits of the operands and of
+ * the result, and the entries of a set are adjacent. The table is set-associative, with
+ * WAYS entries per set, and each stripe of sets is guarded by a StampedLock, so hits are
+ * optimistic reads that take no lock at all.
+ *
+ * When a set is full, admission is TinyLFU-style: a count-min sketch estimates how often
+ * each key was asked for recently, and a new result only replaces the least frequent entry
+ * of its set if it is asked for more often. As in Caffeine, the sketch packs sixteen 4-bit
+ * counters in a long, and the four counters of a key share one long, so an update touches
+ * one cache line. The counters are halved periodically so the sketch forgets old traffic.
+ * Its updates are racy on purpose; a lost increment only makes an estimate a little low.
+ *
+ * A cache hit costs a hash, a few array reads and a sketch update, tens of nanoseconds, so
+ * it only pays off for operations dearer than that: a curve of fifty Math.pow terms, not a
+ * single EXP, let alone PLUS.
+ */
+public final class Item38_OperationCache {
+
+    // Keeps the table, and 10 times the entries as the sketch's sample size, within an int
+    public static final int MAX_CAPACITY = 1 << 27;
+
+    private static final int WAYS = 4;
+    private static final int MAX_STRIPES = 64;
+    private static final int ENTRY_LONGS = 4;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final int setMask;
+    private final int stripeMask;
+    private final StampedLock[] locks;
+    // Entry e is table[4e .. 4e + 3]: op id, x bits, y bits, value bits. Entry w of set s
+    // is e = s * WAYS + w, and an op id of 0 marks an empty entry
+    private final long[] table;
+
+    private final long[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int additions;
+
+    private final AtomicInteger nextOpId = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity the most results kept, rounded up to a power of two
+     * @throws IllegalArgumentException if capacity is less than 4 or more than MAX_CAPACITY
+     */
+    public Item38_OperationCache(int capacity) {
+        if (capacity < WAYS || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int sets = Integer.highestOneBit(capacity - 1) * 2 / WAYS;
+        setMask = sets - 1;
+        int stripes = Math.min(sets, MAX_STRIPES);
+        stripeMask = stripes - 1;
+        locks = new StampedLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new StampedLock();
+        }
+        int entries = sets * WAYS;
+        table = new long[entries * ENTRY_LONGS];
+
+        sketch = new long[entries];
+        sketchMask = sketch.length - 1;
+        sampleSize = 10 * entries;
+    }
+
+    /**
+     * Returns an Operation that looks its results up in this cache before calling op.
+     * Every call wraps op under a new id, so wrap an operation once and share the wrapper.
+     */
+    public Operation memoize(Operation op) {
+        int opId = nextOpId.incrementAndGet();
+        if (opId <= 0) {
+            throw new IllegalStateException("Too many memoized operations");
+        }
+        return new Operation() {
+            @Override
+            public double apply(double x, double y) {
+                return Item38_OperationCache.this.apply(opId, op, x, y);
+            }
+
+            @Override
+            public String toString() {
+                return op.toString();
+            }
+        };
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private double apply(int opId, Operation op, double x, double y) {
+        long xBits = Double.doubleToRawLongBits(x);
+        long yBits = Double.doubleToRawLongBits(y);
+        long hash = hash(opId, xBits, yBits);
+        int set = (int) hash & setMask;
+        int base = set * WAYS;
+        StampedLock lock = locks[set & stripeMask];
+        increment(hash);
+
+        long stamp = lock.tryOptimisticRead();
+        int entry = find(base, opId, xBits, yBits);
+        long valueBits = entry < 0 ? 0 : table[entry + 3];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                entry = find(base, opId, xBits, yBits);
+                valueBits = entry < 0 ? 0 : table[entry + 3];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (entry >= 0) {
+            hits.increment();
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        misses.increment();
+        double value = op.apply(x, y);
+        stamp = lock.writeLock();
+        try {
+            if (find(base, opId, xBits, yBits) < 0) {
+                int victim = victim(base);
+                if (table[victim] == 0
+                        || frequency(hash) > frequency(hash((int) table[victim], table[victim + 1], table[victim + 2]))) {
+                    table[victim] = opId;
+                    table[victim + 1] = xBits;
+                    table[victim + 2] = yBits;
+                    table[victim + 3] = Double.doubleToRawLongBits(value);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return value;
+    }
+
+    // Returns the table index of the entry, or -1
+    private int find(int base, int opId, long xBits, long yBits) {
+        for (int i = base * ENTRY_LONGS, end = i + WAYS * ENTRY_LONGS; i < end; i += ENTRY_LONGS) {
+            if (table[i] == opId && table[i + 1] == xBits && table[i + 2] == yBits) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The table index of an empty entry, or else of the least frequent one
+    private int victim(int base) {
+        int victim = base * ENTRY_LONGS;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = victim, end = i + WAYS * ENTRY_LONGS; i < end; i += ENTRY_LONGS) {
+            if (table[i] == 0) {
+                return i;
+            }
+            int f = frequency(hash((int) table[i], table[i + 1], table[i + 2]));
+            if (f < lowest) {
+                lowest = f;
+                victim = i;
+            }
+        }
+        return victim;
+    }
+
+    // Count-min sketch: counter d of a key is in the d-th quarter of the key's long
+
+    private void increment(long hash) {
+        int i = (int) (hash >>> 24) & sketchMask;
+        long word = sketch[i];
+        boolean added = false;
+        for (int d = 0; d < SKETCH_DEPTH; d++) {
+            int shift = counterShift(hash, d);
+            if ((word >>> shift & MAX_FREQUENCY) < MAX_FREQUENCY) {
+                word += 1L << shift;
+                added = true;
+            }
+        }
+        if (!added) {
+            return;
+        }
+        sketch[i] = word;
+        if (++additions >= sampleSize) {
+            additions = 0;
+            for (int j = 0; j < sketch.length; j++) {
+                sketch[j] = (sketch[j] >>> 1) & RESET_MASK;
+            }
+        }
+    }
+
+    private int frequency(long hash) {
+        long word = sketch[(int) (hash >>> 24) & sketchMask];
+        int f = MAX_FREQUENCY;
+        for (int d = 0; d < SKETCH_DEPTH; d++) {
+            f = Math.min(f, (int) (word >>> counterShift(hash, d) & MAX_FREQUENCY));
+        }
+        return f;
+    }
+
+    // The bit offset of counter d: one of the four counters in quarter d, picked by the top byte
+    private static int counterShift(long hash, int d) {
+        return ((d << 2) + (int) (hash >>> (56 + 2 * d) & 3)) << 2;
+    }
+
+    private static long hash(int opId, long xBits, long yBits) {
+        long h = opId * 0x9E3779B97F4A7C15L;
+        h = (h ^ xBits) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 31) ^ yBits) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Times plain and memoized operations on workloads where the cache helps and where it
+     * doesn't: a dear curve and EXP on a small recurring set of operands, EXP on operands
+     * that never repeat, and PLUS, which is cheaper than any lookup.
+     */
+    public static void main(String[] args) {
+        int calls = 10_000_000;
+        Random random = new Random(42);
+        // Skewed: a few operand pairs are asked for far more often than the rest
+        double[] recurringX = new double[calls];
+        double[] uniqueX = new double[calls];
+        for (int i = 0; i < calls; i++) {
+            recurringX[i] = 1 + (int) (2_000 * Math.pow(random.nextDouble(), 3)) / 100.0;
+            uniqueX[i] = 1 + random.nextDouble();
+        }
+
+        // A discounting curve of 50 terms, like the ones EXP is called from
+        Operation curve = (x, y) -> {
+            double sum = 0;
+            for (int k = 1; k <= 50; k++) {
+                sum += Math.pow(x, -y * k / 50);
+            }
+            return sum;
+        };
+
+        Object[][] cases = {
+            {"curve, recurring operands", curve, recurringX},
+            {"EXP, recurring operands", ExtendedOperation.EXP, recurringX},
+            {"EXP, unique operands", ExtendedOperation.EXP, uniqueX},
+            {"REMAINDER, recurring operands", ExtendedOperation.REMAINDER, recurringX},
+            {"PLUS, recurring operands", BasicOperation.PLUS, recurringX},
+        };
+        for (Object[] c : cases) {
+            Operation op = (Operation) c[1];
+            double[] operands = (double[]) c[2];
+            Item38_OperationCache cache = new Item38_OperationCache(1 << 10);
+            Operation memoized = cache.memoize(op);
+            for (int round = 0; round < 3; round++) {
+                double expected = 0;
+                long t0 = System.nanoTime();
+                for (double x : operands) {
+                    expected += op.apply(x, 2.5);
+                }
+                long plain = System.nanoTime() - t0;
+
+                double actual = 0;
+                t0 = System.nanoTime();
+                for (double x : operands) {
+                    actual += memoized.apply(x, 2.5);
+                }
+                long cached = System.nanoTime() - t0;
+
+                if (round == 2) {
+                    System.out.printf("%-30s plain %6.1f ns, memoized %6.1f ns, hit rate %.2f, same results: %b%n",
+                        c[0], (double) plain / calls, (double) cached / calls, cache.hitRate(), expected == actual);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.BasicOperation;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.ExtendedOperation;
+import com.effectivejava.ch06_enums_annotations.Item38_ExtensibleEnum.Operation;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Operations by symbol, for callers that can't name the operation enums at compile time.
+ *
+ * Item38_ExtensibleEnum passes the enum class to `test` explicitly. Here operation enums are
+ * registered at runtime, directly or through {@link Provider}s found by ServiceLoader, for
+ * example in a plugin jar loaded without a restart. A later registration of a symbol
+ * replaces the earlier one.
+ *
+ * Every change publishes a new immutable snapshot through one volatile field, so a lookup
+ * is wait-free: one volatile read, then an array index. Single ASCII characters index an
+ * array directly; other symbols go through a perfect hash, recomputed for each snapshot so
+ * that no two symbols share a slot. If there is none, as when two symbols have the same
+ * hashCode, the snapshot falls back to its map.
+ */
+public final class Item38_OperationRegistry {
+
+    /**
+     * A source of operations, listed in `META-INF/services` for ServiceLoader. It needs a
+     * public no-argument constructor, which the operation enums themselves can't have.
+     */
+    public interface Provider {
+        Collection<? extends Operation> operations();
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyMap());
+        // 8 table doublings
+        static final int MAX_ATTEMPTS = 256;
+
+        final Map<String, Operation> bySymbol;
+        final Operation[] ascii = new Operation[128];
+        // null if no perfect hash was found
+        final String[] keys;
+        final Operation[] values;
+        final int multiplier;
+        final int shift;
+
+        Snapshot(Map<String, Operation> bySymbol) {
+            this.bySymbol = Collections.unmodifiableMap(bySymbol);
+            for (Map.Entry<String, Operation> e : bySymbol.entrySet()) {
+                String symbol = e.getKey();
+                if (symbol.length() == 1 && symbol.charAt(0) < ascii.length) {
+                    ascii[symbol.charAt(0)] = e.getValue();
+                }
+            }
+
+            // Multiply-shift hashing: try multipliers until every symbol has its own slot,
+            // doubling the table now and then. A few symbols settle in a few tries. Symbols
+            // with equal hash codes collide under every multiplier, and a search that takes
+            // too long gives up: lookups then go through the map instead
+            String[] foundKeys = null;
+            Operation[] foundValues = null;
+            int foundMultiplier = 0;
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, bySymbol.size() - 1)) + 1);
+            if (distinctHashCodes(bySymbol.keySet())) {
+                Random random = new Random(0);
+                for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                    if (attempt > 0 && attempt % 32 == 0) {
+                        bits++;
+                    }
+                    int m = random.nextInt() | 1;
+                    String[] k = new String[1 << bits];
+                    Operation[] v = new Operation[1 << bits];
+                    boolean perfect = true;
+                    for (Map.Entry<String, Operation> e : bySymbol.entrySet()) {
+                        int slot = (e.getKey().hashCode() * m) >>> (32 - bits);
+                        if (k[slot] != null) {
+                            perfect = false;
+                            break;
+                        }
+                        k[slot] = e.getKey();
+                        v[slot] = e.getValue();
+                    }
+                    if (perfect) {
+                        foundKeys = k;
+                        foundValues = v;
+                        foundMultiplier = m;
+                        break;
+                    }
+                }
+            }
+            keys = foundKeys;
+            values = foundValues;
+            multiplier = foundMultiplier;
+            shift = 32 - bits;
+        }
+
+        private static boolean distinctHashCodes(Collection<String> symbols) {
+            Set<Integer> hashCodes = new HashSet<>();
+            for (String symbol : symbols) {
+                if (!hashCodes.add(symbol.hashCode())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Operation lookup(String symbol) {
+            if (keys == null) {
+                return bySymbol.get(symbol);
+            }
+            int slot = (symbol.hashCode() * multiplier) >>> shift;
+            return symbol.equals(keys[slot]) ? values[slot] : null;
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * Returns a registry with BasicOperation and ExtendedOperation.
+     */
+    public static Item38_OperationRegistry withBuiltIns() {
+        Item38_OperationRegistry registry = new Item38_OperationRegistry();
+        registry.registerAll(BasicOperation.class);
+        registry.registerAll(ExtendedOperation.class);
+        return registry;
+    }
+
+    /**
+     * Returns the operation for a symbol, or null if there is none. Wait-free.
+     */
+    public Operation lookup(String symbol) {
+        return snapshot.lookup(symbol);
+    }
+
+    /**
+     * Returns the operation for a single-character symbol, or null if there is none. Wait-free.
+     */
+    public Operation lookup(char symbol) {
+        Snapshot s = snapshot;
+        return symbol < s.ascii.length ? s.ascii[symbol] : s.lookup(String.valueOf(symbol));
+    }
+
+    /**
+     * Returns the registered operations by symbol, as of this call.
+     */
+    public Map<String, Operation> operations() {
+        return snapshot.bySymbol;
+    }
+
+    /**
+     * Registers op under its toString(), replacing any operation with the same symbol.
+     */
+    public void register(Operation op) {
+        registerAll(Collections.singletonList(op));
+    }
+
+    /**
+     * Registers every constant of an operation enum: `bounded type token`, as in
+     * Item38_ExtensibleEnum.test.
+     */
+    public <T extends Enum<T> & Operation> void registerAll(Class<T> opEnumType) {
+        registerAll(Arrays.asList(opEnumType.getEnumConstants()));
+    }
+
+    /**
+     * Registers every operation in ops: `bounded wildcard type`, as in Item38_ExtensibleEnum.test2.
+     */
+    public synchronized void registerAll(Collection<? extends Operation> ops) {
+        Map<String, Operation> bySymbol = new LinkedHashMap<>(snapshot.bySymbol);
+        for (Operation op : ops) {
+            String symbol = op.toString();
+            if (symbol == null || symbol.isEmpty()) {
+                throw new IllegalArgumentException("Operation without a symbol: " + op.getClass().getName());
+            }
+            bySymbol.remove(symbol); // Keep the order of registration
+            bySymbol.put(symbol, op);
+        }
+        snapshot = new Snapshot(bySymbol);
+    }
+
+    /**
+     * Removes the operation for a symbol, returning it, or null if there was none.
+     */
+    public synchronized Operation unregister(String symbol) {
+        Map<String, Operation> bySymbol = new LinkedHashMap<>(snapshot.bySymbol);
+        Operation removed = bySymbol.remove(symbol);
+        if (removed != null) {
+            snapshot = new Snapshot(bySymbol);
+        }
+        return removed;
+    }
+
+    /**
+     * Registers the operations of every Provider that ServiceLoader finds through loader,
+     * in one new snapshot.
+     *
+     * @return the number of providers found
+     */
+    public int load(ClassLoader loader) {
+        List<Operation> ops = new ArrayList<>();
+        int providers = 0;
+        for (Provider provider : ServiceLoader.load(Provider.class, loader)) {
+            ops.addAll(provider.operations());
+            providers++;
+        }
+        registerAll(ops);
+        return providers;
+    }
+
+    /**
+     * For the demo: an operation enum that is only found through ServiceLoader.
+     */
+    public enum BoundOperation implements Operation {
+        MIN("min") {
+            public double apply(double x, double y) {
+                return Math.min(x, y);
+            }
+        },
+        MAX("max") {
+            public double apply(double x, double y) {
+                return Math.max(x, y);
+            }
+        },
+        HYPOT("hypot") {
+            public double apply(double x, double y) {
+                return Math.hypot(x, y);
+            }
+        };
+
+        private final String symbol;
+
+        BoundOperation(String symbol) {
+            this.symbol = symbol;
+        }
+
+        @Override
+        public String toString() {
+            return symbol;
+        }
+    }
+
+    public static final class BoundOperationProvider implements Provider {
+        @Override
+        public Collection<? extends Operation> operations() {
+            return Arrays.asList(BoundOperation.values());
+        }
+    }
+
+    /**
+     * Loads a provider from a directory made at runtime, then times lookups against a
+     * ConcurrentHashMap while another thread keeps re-registering.
+     */
+    public static void main(String[] args) throws Exception {
+        Item38_OperationRegistry registry = withBuiltIns();
+        System.out.println(registry.operations().keySet());
+
+        Path plugin = Files.createTempDirectory("plugin");
+        Path services = Files.createDirectories(plugin.resolve("META-INF/services"));
+        Files.write(services.resolve(Provider.class.getName()),
+            BoundOperationProvider.class.getName().getBytes(StandardCharsets.UTF_8));
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{plugin.toUri().toURL()},
+                Item38_OperationRegistry.class.getClassLoader())) {
+            System.out.println("providers loaded: " + registry.load(loader));
+        } finally {
+            deleteTree(plugin);
+        }
+        System.out.println(registry.operations().keySet());
+        for (String symbol : new String[]{"+", "^", "hypot", "max", "?"}) {
+            Operation op = registry.lookup(symbol);
+            System.out.printf("3 %s 4 = %s%n", symbol, op == null ? "unknown" : op.apply(3, 4));
+        }
+
+        Map<String, Operation> chm = new ConcurrentHashMap<>(registry.operations());
+        String[] symbols = registry.operations().keySet().toArray(new String[0]);
+        char[] chars = "+-*/^%".toCharArray();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            while (running.get()) {
+                registry.registerAll(BasicOperation.class);
+                chm.put("+", BasicOperation.PLUS);
+            }
+        });
+        writer.start();
+        int rounds = 5_000_000;
+        try {
+            for (int round = 0; round < 5; round++) {
+                long sink = 0;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    sink += registry.lookup(chars[i % chars.length]).hashCode();
+                }
+                long byChar = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    sink += registry.lookup(symbols[i % symbols.length]).hashCode();
+                }
+                long bySymbol = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    sink += chm.get(symbols[i % symbols.length]).hashCode();
+                }
+                long concurrentMap = System.nanoTime() - t0;
+
+                System.out.printf("lookup(char) %.1f ns, lookup(String) %.1f ns, ConcurrentHashMap %.1f ns (%d)%n",
+                    (double) byChar / rounds, (double) bySymbol / rounds, (double) concurrentMap / rounds, sink);
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs annotated test classes in a pool of pre-warmed child JVMs.
+ *
+ * Tests that mutate static state can't share one JVM, but forking a cold JVM per test class
+ * pays for JVM startup and class loading every time. Each worker here is started once,
+ * receives test class names over its stdin, reports results over its stdout, and is
+ * recycled after `classesPerWorker` classes. The parent merges the results.
+ *
+ * Both the marker annotation of Item39_2 and the single-exception annotation of Item39_3
+ * are recognized.
+ */
+public class Item39_6_ForkedWorkerPool implements AutoCloseable {
+
+    private static final String WORKER_ARG = "--worker";
+    private static final String READY = "READY";
+    private static final String FAIL = "FAIL ";
+    private static final String DONE = "DONE ";
+
+    private final int poolSize;
+    private final int classesPerWorker;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    // Workers not yet closed or destroyed
+    private final List<Worker> started = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Starts `poolSize` workers right away, so that they boot while the caller is still
+     * collecting test classes.
+     *
+     * @param poolSize         the number of child JVMs running at the same time
+     * @param classesPerWorker the number of test classes a worker runs before it is replaced
+     * @throws IllegalArgumentException if either argument is less than 1
+     */
+    public Item39_6_ForkedWorkerPool(int poolSize, int classesPerWorker) throws IOException {
+        if (poolSize < 1 || classesPerWorker < 1) {
+            throw new IllegalArgumentException("poolSize: " + poolSize + ", classesPerWorker: " + classesPerWorker);
+        }
+        this.poolSize = poolSize;
+        this.classesPerWorker = classesPerWorker;
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                idle.add(spawn());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs every test class on some worker and returns the merged result.
+     */
+    public Result run(List<String> testClassNames) throws InterruptedException {
+        ExecutorService dispatcher = Executors.newFixedThreadPool(poolSize);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (String className : testClassNames) {
+                futures.add(dispatcher.submit(() -> dispatch(className)));
+            }
+            Result merged = new Result();
+            for (Future<Result> f : futures) {
+                try {
+                    merged.merge(f.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Dispatcher failed", e.getCause());
+                }
+            }
+            return merged;
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    private Result dispatch(String className) throws IOException, InterruptedException {
+        Worker worker = idle.take();
+        Worker replacement = null;
+        try {
+            if (!worker.isAlive()) {
+                // A dead worker holds the slot of a replacement that failed to start
+                worker = spawn();
+            }
+            // Boot the next JVM while the retiring one runs its last class
+            if (worker.remaining == 1) {
+                replacement = spawn();
+            }
+        } catch (IOException e) {
+            idle.add(worker);
+            throw e;
+        }
+        try {
+            Result result = worker.run(className);
+            if (--worker.remaining == 0) {
+                worker.close();
+            }
+            return result;
+        } catch (IOException e) {
+            worker.destroy();
+            Result crashed = new Result();
+            crashed.tests = 1;
+            crashed.failures.add(className + " failed: worker exited (" + e.getMessage() + ")");
+            return crashed;
+        } finally {
+            release(worker, replacement);
+        }
+    }
+
+    // Puts a worker back in the slot, never leaving it empty
+    private void release(Worker worker, Worker replacement) {
+        if (worker.isAlive()) {
+            idle.add(worker);
+            if (replacement != null) {
+                replacement.close();
+                started.remove(replacement);
+            }
+            return;
+        }
+        started.remove(worker);
+        if (replacement == null) {
+            try {
+                replacement = spawn();
+            } catch (IOException e) {
+                // The next dispatch that takes the dead worker tries again, and reports the failure
+                replacement = worker;
+            }
+        }
+        idle.add(replacement);
+    }
+
+    private Worker spawn() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            Item39_6_ForkedWorkerPool.class.getName(), WORKER_ARG);
+        // Test output goes to stderr; stdout carries the protocol
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker = new Worker(pb.start(), classesPerWorker);
+        started.add(worker);
+        return worker;
+    }
+
+    @Override
+    public void close() {
+        synchronized (started) {
+            for (Worker w : started) {
+                w.close();
+            }
+        }
+    }
+
+    /**
+     * Merged outcome of a run.
+     */
+    public static final class Result {
+        private int tests;
+        private int passed;
+        private final List<String> failures = new ArrayList<>();
+
+        public int tests() { return tests; }
+        public int passed() { return passed; }
+        public List<String> failures() { return Collections.unmodifiableList(failures); }
+
+        void merge(Result other) {
+            tests += other.tests;
+            passed += other.passed;
+            failures.addAll(other.failures);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Passed: %d, Failed: %d", passed, tests - passed);
+        }
+    }
+
+    /**
+     * Parent-side handle of one child JVM.
+     */
+    private static final class Worker {
+        private final Process process;
+        private final BufferedReader in;
+        private final Writer out;
+        private boolean ready;
+        private boolean retired;
+        private int remaining;
+
+        Worker(Process process, int classes) {
+            this.process = process;
+            this.in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            this.remaining = classes;
+        }
+
+        Result run(String className) throws IOException {
+            if (!ready) {
+                expect(READY.equals(readLine()));
+                ready = true;
+            }
+            out.write(className);
+            out.write('\n');
+            out.flush();
+
+            Result result = new Result();
+            for (String line = readLine(); ; line = readLine()) {
+                if (line.startsWith(FAIL)) {
+                    result.failures.add(line.substring(FAIL.length()));
+                } else {
+                    expect(line.startsWith(DONE));
+                    String[] counts = line.substring(DONE.length()).split(" ");
+                    result.tests = Integer.parseInt(counts[0]);
+                    result.passed = Integer.parseInt(counts[1]);
+                    return result;
+                }
+            }
+        }
+
+        private String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("unexpected end of stream");
+            }
+            return line;
+        }
+
+        private static void expect(boolean condition) throws IOException {
+            if (!condition) {
+                throw new IOException("protocol error");
+            }
+        }
+
+        boolean isAlive() {
+            return !retired && process.isAlive();
+        }
+
+        // An empty line asks the worker to exit
+        void close() {
+            retired = true;
+            try {
+                out.write('\n');
+                out.close();
+            } catch (IOException ignored) {
+                // The worker is already gone
+            }
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+        }
+
+        void destroy() {
+            retired = true;
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Child side: runs test classes named on stdin until an empty line or end of input.
+     */
+    private static void workerLoop() throws IOException {
+        PrintStream protocol = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+        System.setOut(System.err);
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        protocol.println(READY);
+        for (String className; (className = commands.readLine()) != null && !className.isEmpty(); ) {
+            int tests = 0;
+            int passed = 0;
+            try {
+                for (Method m : Class.forName(className).getDeclaredMethods()) {
+                    if (!isTest(m)) {
+                        continue;
+                    }
+                    tests++;
+                    String failure = runTest(m);
+                    if (failure == null) {
+                        passed++;
+                    } else {
+                        protocol.println(FAIL + failure.replace('\n', ' '));
+                    }
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                tests++;
+                protocol.println(FAIL + "cannot load " + className + ": " + e);
+            }
+            protocol.println(DONE + tests + " " + passed);
+        }
+    }
+
+    private static boolean isTest(Method m) {
+        return m.isAnnotationPresent(Item39_2_MarkerAnnotations.Test.class)
+            || m.isAnnotationPresent(Item39_3_AnnotationsParam.ExceptionTest.class);
+    }
+
+    // Returns null if the test passed, otherwise the failure message
+    private static String runTest(Method m) {
+        if (!Modifier.isStatic(m.getModifiers()) || m.getParameterCount() != 0) {
+            return "Invalid @Test: " + m;
+        }
+        Item39_3_AnnotationsParam.ExceptionTest excTest = m.getAnnotation(Item39_3_AnnotationsParam.ExceptionTest.class);
+        try {
+            m.setAccessible(true);
+            m.invoke(null);
+            return excTest == null ? null : String.format("Test %s failed: no exception", m);
+        } catch (InvocationTargetException wrappedExc) {
+            Throwable exc = wrappedExc.getCause();
+            if (excTest == null) {
+                return m + " failed: " + exc;
+            }
+            return excTest.value().isInstance(exc) ? null
+                : String.format("Test %s failed: expected %s, got %s", m, excTest.value().getName(), exc);
+        } catch (ReflectiveOperationException | RuntimeException exc) {
+            return "Invalid @Test: " + m;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && WORKER_ARG.equals(args[0])) {
+            workerLoop();
+            return;
+        }
+
+        List<String> classes = args.length > 0 ? Arrays.asList(args) : Arrays.asList(
+            Item39_2_MarkerAnnotations.Sample.class.getName(),
+            Item39_3_AnnotationsParam.Sample2.class.getName());
+
+        try (Item39_6_ForkedWorkerPool pool = new Item39_6_ForkedWorkerPool(2, 1)) {
+            Result result = pool.run(classes);
+            result.failures().forEach(System.out::println);
+            // Passed: 2, Failed: 5
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Counts bigrams without a `Bigram` object per occurrence.
+ *
+ * A bigram of two chars packs into an int key, `(first << 16) | second`, and the counts live
+ * in an open-addressing table of those primitive keys. Text is mostly Latin-1, and there
+ * are only 65,536 bigrams of two chars below 256, so the DENSE mode counts those directly
+ * in an array indexed by `(first << 8) | second` and only sends the rest to the table.
+ */
+public final class Item40_BigramCounter {
+
+    public enum Mode { DENSE, SPARSE }
+
+    private static final int LATIN1_BIGRAMS = 1 << 16;
+    private static final int CHUNK_BYTES = 32 << 20;
+
+    // Latin-1 bigrams in DENSE mode, null in SPARSE mode
+    private final long[] dense;
+
+    // keys[slot] and counts[slot]; a slot is free while its count is 0
+    private int[] keys = new int[16];
+    private long[] counts = new long[16];
+    private int size;
+
+    public Item40_BigramCounter(Mode mode) {
+        dense = mode == Mode.DENSE ? new long[LATIN1_BIGRAMS] : null;
+    }
+
+    static int pack(char first, char second) {
+        return (first << 16) | second;
+    }
+
+    private static boolean isLatin1(int key) {
+        return (key & 0xFF00FF00) == 0;
+    }
+
+    private static int denseIndex(int key) {
+        return (key >>> 8) | (key & 0xFF);
+    }
+
+    private static int denseKey(int index) {
+        return ((index & 0xFF00) << 8) | (index & 0xFF);
+    }
+
+    public void add(char first, char second) {
+        add(pack(first, second), 1);
+    }
+
+    public void add(CharSequence text) {
+        for (int i = 1; i < text.length(); i++) {
+            add(pack(text.charAt(i - 1), text.charAt(i)), 1);
+        }
+    }
+
+    public long count(char first, char second) {
+        int key = pack(first, second);
+        if (dense != null && isLatin1(key)) {
+            return dense[denseIndex(key)];
+        }
+        return counts[find(key)];
+    }
+
+    /**
+     * Returns the number of distinct bigrams seen so far.
+     */
+    public int distinct() {
+        int n = size;
+        if (dense != null) {
+            for (long c : dense) {
+                if (c != 0) n++;
+            }
+        }
+        return n;
+    }
+
+    private void add(int key, long delta) {
+        if (dense != null && isLatin1(key)) {
+            dense[denseIndex(key)] += delta;
+            return;
+        }
+        int slot = find(key);
+        if (counts[slot] == 0) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                counts[slot] = delta;
+                grow();
+                return;
+            }
+        }
+        counts[slot] += delta;
+    }
+
+    // Linear probing; returns the slot holding key, or the free slot where it belongs
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (counts[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new int[oldKeys.length * 2];
+        counts = new long[oldCounts.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Adds every count of other to this counter.
+     */
+    public void merge(Item40_BigramCounter other) {
+        if (other.dense != null) {
+            for (int i = 0; i < LATIN1_BIGRAMS; i++) {
+                if (other.dense[i] != 0) add(denseKey(i), other.dense[i]);
+            }
+        }
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.counts[i] != 0) add(other.keys[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * Returns the k most frequent bigrams, most frequent first.
+     */
+    public List<Entry> top(int k) {
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, k));
+        if (k > 0) {
+            if (dense != null) {
+                for (int i = 0; i < LATIN1_BIGRAMS; i++) {
+                    offer(heap, k, denseKey(i), dense[i]);
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                offer(heap, k, keys[i], counts[i]);
+            }
+        }
+        List<Entry> result = new ArrayList<>(heap);
+        result.sort(Collections.reverseOrder());
+        return result;
+    }
+
+    // Keeps the k largest counts in a min-heap
+    private static void offer(PriorityQueue<Entry> heap, int k, int key, long count) {
+        if (count == 0 || (heap.size() == k && count <= heap.peek().count)) {
+            return;
+        }
+        if (heap.size() == k) {
+            heap.poll();
+        }
+        heap.add(new Entry(key, count));
+    }
+
+    public static final class Entry implements Comparable<Entry> {
+        private final int key;
+        private final long count;
+
+        Entry(int key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public char first() { return (char) (key >>> 16); }
+        public char second() { return (char) key; }
+        public long count() { return count; }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Long.compare(count, o.count);
+            // Among equal counts, the smaller key ranks higher
+            return c != 0 ? c : Integer.compare(o.key, key);
+        }
+
+        @Override
+        public String toString() {
+            return "" + first() + second() + "=" + count;
+        }
+    }
+
+    /**
+     * Counts the bigrams of a text file, decoding memory-mapped chunks in parallel.
+     *
+     * Chunk boundaries are moved forward to the start of a character, and the bigram that
+     * straddles each boundary is added during the final merge.
+     */
+    public static Item40_BigramCounter countFile(Path file, Charset charset) throws IOException {
+        if (!StandardCharsets.UTF_8.equals(charset) && charset.newEncoder().maxBytesPerChar() > 1f) {
+            throw new IllegalArgumentException("Unsupported multi-byte charset: " + charset);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            for (long pos = CHUNK_BYTES; pos < size; pos += CHUNK_BYTES) {
+                bounds.add(pos);
+            }
+            bounds.add(size);
+
+            int chunks = bounds.size() - 1;
+            Chunk[] results = new Chunk[chunks];
+            Item40_BigramCounter total = new Item40_BigramCounter(Mode.DENSE);
+            IntStream.range(0, chunks).parallel().forEach(i -> {
+                try {
+                    Chunk c = countChunk(channel, bounds.get(i), bounds.get(i + 1), charset);
+                    synchronized (total) {
+                        total.merge(c.counter);
+                    }
+                    // Only the edge characters are needed from here on
+                    results[i] = c.edges();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            Chunk previous = null;
+            for (Chunk c : results) {
+                if (previous != null && previous.last >= 0 && c.first >= 0) {
+                    total.add((char) previous.last, (char) c.first);
+                }
+                if (c.last >= 0) {
+                    previous = c;
+                }
+            }
+            return total;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Chunk {
+        final Item40_BigramCounter counter;
+        int first = -1;
+        int last = -1;
+
+        Chunk(Item40_BigramCounter counter) {
+            this.counter = counter;
+        }
+
+        Chunk edges() {
+            Chunk edges = new Chunk(null);
+            edges.first = first;
+            edges.last = last;
+            return edges;
+        }
+    }
+
+    private static Chunk countChunk(FileChannel channel, long from, long to, Charset charset) throws IOException {
+        Chunk chunk = new Chunk(new Item40_BigramCounter(Mode.DENSE));
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        ByteBuffer in = mapped;
+        if (StandardCharsets.UTF_8.equals(charset)) {
+            // Skip the continuation bytes of a character that started in the previous chunk
+            int start = 0;
+            while (from > 0 && start < in.limit() && (in.get(start) & 0xC0) == 0x80) {
+                start++;
+            }
+            in.position(start);
+            // ... and read on into the next chunk to finish the last character
+            int end = in.limit();
+            if (end > start && to < channel.size()) {
+                int tail = 0;
+                ByteBuffer next = channel.map(FileChannel.MapMode.READ_ONLY, to, Math.min(3, channel.size() - to));
+                while (tail < next.limit() && (next.get(tail) & 0xC0) == 0x80) {
+                    tail++;
+                }
+                if (tail > 0) {
+                    ByteBuffer joined = ByteBuffer.allocate(end - start + tail);
+                    joined.put(in).put((ByteBuffer) next.limit(tail)).flip();
+                    in = joined;
+                }
+            }
+        }
+
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer out = CharBuffer.allocate(8192);
+        int prev = -1;
+        boolean endOfInput = false;
+        while (true) {
+            CoderResult result = decoder.decode(in, out, endOfInput);
+            if (endOfInput) {
+                decoder.flush(out);
+            }
+            out.flip();
+            while (out.hasRemaining()) {
+                char c = out.get();
+                if (prev >= 0) {
+                    chunk.counter.add(pack((char) prev, c), 1);
+                } else {
+                    chunk.first = c;
+                }
+                prev = c;
+            }
+            out.clear();
+            if (endOfInput) break;
+            // Underflow: whatever is left is an incomplete character, replaced by the last pass
+            if (result.isUnderflow()) endOfInput = true;
+        }
+        chunk.last = prev;
+        return chunk;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Item40_BigramCounter counter = new Item40_BigramCounter(Mode.SPARSE);
+        for (int i = 0; i < 10; i++) {
+            for (char ch = 'a'; ch <= 'z'; ch++) {
+                counter.add(ch, ch);
+            }
+        }
+        // 26, unlike the HashSet<Bigram> of Item40_OverrideAnnotation
+        System.out.println(counter.distinct());
+
+        Path file = args.length > 0 ? Paths.get(args[0]) : Files.createTempFile("bigrams", ".txt");
+        if (args.length == 0) {
+            Files.write(file, "the quick brown fox jumps over the lazy dog, then the end".getBytes(StandardCharsets.UTF_8));
+        }
+        long start = System.nanoTime();
+        Item40_BigramCounter fileCounts = countFile(file, StandardCharsets.UTF_8);
+        long elapsed = System.nanoTime() - start;
+        // [he=4, th=4,  t=3, e =3, en=2]
+        System.out.println(fileCounts.top(5));
+        System.out.printf("%d bytes in %d ms%n", Files.size(file), elapsed / 1_000_000);
+        if (args.length == 0) {
+            Files.delete(file);
+        }
+    }
+}
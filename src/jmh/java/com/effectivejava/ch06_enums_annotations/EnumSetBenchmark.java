@@ -0,0 +1,182 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item36_EnumSet.EnumSetText.Style;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Item 36 claims EnumSet performs comparably to bit fields. Each benchmark runs one
+ * operation on SETS random style sets, kept as EnumSets, as int masks in the style of
+ * BitFieldText, and as HashSets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class EnumSetBenchmark {
+
+    static final int SETS = 1024;
+    private static final Style[] STYLES = Style.values();
+
+    private EnumSet<Style>[] enumSets;
+    private int[] masks;
+    private Set<Style>[] hashSets;
+
+    @Setup
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setup() {
+        Random random = new Random(42);
+        enumSets = new EnumSet[SETS];
+        masks = new int[SETS];
+        hashSets = new Set[SETS];
+        for (int i = 0; i < SETS; i++) {
+            int mask = random.nextInt(1 << STYLES.length);
+            masks[i] = mask;
+            enumSets[i] = EnumSet.noneOf(Style.class);
+            for (Style s : STYLES) {
+                if ((mask & 1 << s.ordinal()) != 0) {
+                    enumSets[i].add(s);
+                }
+            }
+            hashSets[i] = new HashSet<>(enumSets[i]);
+        }
+    }
+
+    // Membership
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int containsEnumSet() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            n += enumSets[i].contains(STYLES[i & 3]) ? 1 : 0;
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int containsMask() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            n += (masks[i] & 1 << (i & 3)) != 0 ? 1 : 0;
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int containsHashSet() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            n += hashSets[i].contains(STYLES[i & 3]) ? 1 : 0;
+        }
+        return n;
+    }
+
+    // Union, into a new set so the inputs stay unchanged
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void unionEnumSet(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            EnumSet<Style> union = enumSets[i].clone();
+            union.addAll(enumSets[(i + 1) & (SETS - 1)]);
+            bh.consume(union);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void unionMask(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            bh.consume(masks[i] | masks[(i + 1) & (SETS - 1)]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void unionHashSet(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            Set<Style> union = new HashSet<>(hashSets[i]);
+            union.addAll(hashSets[(i + 1) & (SETS - 1)]);
+            bh.consume(union);
+        }
+    }
+
+    // Intersection
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void intersectionEnumSet(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            EnumSet<Style> intersection = enumSets[i].clone();
+            intersection.retainAll(enumSets[(i + 1) & (SETS - 1)]);
+            bh.consume(intersection);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void intersectionMask(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            bh.consume(masks[i] & masks[(i + 1) & (SETS - 1)]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public void intersectionHashSet(Blackhole bh) {
+        for (int i = 0; i < SETS; i++) {
+            Set<Style> intersection = new HashSet<>(hashSets[i]);
+            intersection.retainAll(hashSets[(i + 1) & (SETS - 1)]);
+            bh.consume(intersection);
+        }
+    }
+
+    // Iteration
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int iterateEnumSet() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            for (Style s : enumSets[i]) {
+                n += s.ordinal();
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int iterateMask() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            for (int m = masks[i]; m != 0; m &= m - 1) {
+                n += STYLES[Integer.numberOfTrailingZeros(m)].ordinal();
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SETS)
+    public int iterateHashSet() {
+        int n = 0;
+        for (int i = 0; i < SETS; i++) {
+            for (Style s : hashSets[i]) {
+                n += s.ordinal();
+            }
+        }
+        return n;
+    }
+}
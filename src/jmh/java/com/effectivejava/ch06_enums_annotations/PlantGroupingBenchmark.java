@@ -0,0 +1,70 @@
+package com.effectivejava.ch06_enums_annotations;
+
+import com.effectivejava.ch06_enums_annotations.Item37_EnumMap.Plant;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Item 37 claims EnumMap is as fast as indexing an array by ordinal. Times the four ways
+ * Item37_EnumMap groups a garden by life cycle, the stream-based ones both sequential and
+ * parallel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PlantGroupingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int gardenSize;
+
+    private List<Plant> garden;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Plant.LifeCycle[] lifeCycles = Plant.LifeCycle.values();
+        garden = new ArrayList<>(gardenSize);
+        for (int i = 0; i < gardenSize; i++) {
+            garden.add(new Plant("plant" + i, lifeCycles[random.nextInt(lifeCycles.length)]));
+        }
+    }
+
+    @Benchmark
+    public Set<Plant>[] ordinalIndexing() {
+        return Item37_EnumMap.ordinalIndexing(garden);
+    }
+
+    @Benchmark
+    public Map<Plant.LifeCycle, Set<Plant>> enumMap() {
+        return Item37_EnumMap.enumMap(garden);
+    }
+
+    @Benchmark
+    public Map<Plant.LifeCycle, List<Plant>> streamMap() {
+        return Item37_EnumMap.streamMap(garden.stream());
+    }
+
+    @Benchmark
+    public Map<Plant.LifeCycle, Set<Plant>> streamEnumMap() {
+        return Item37_EnumMap.streamEnumMap(garden.stream());
+    }
+
+    @Benchmark
+    public Map<Plant.LifeCycle, List<Plant>> parallelStreamMap() {
+        return Item37_EnumMap.streamMap(garden.parallelStream());
+    }
+
+    @Benchmark
+    public Map<Plant.LifeCycle, Set<Plant>> parallelStreamEnumMap() {
+        return Item37_EnumMap.streamEnumMap(garden.parallelStream());
+    }
+}
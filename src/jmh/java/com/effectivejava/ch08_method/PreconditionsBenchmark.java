@@ -0,0 +1,111 @@
+package com.effectivejava.ch08_method;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Success-path cost of Preconditions: the same two checks per element, hand-written, through
+ * the check and assume methods, and through them again in forks that turn them off, against
+ * a loop with no checks at all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PreconditionsBenchmark {
+
+    static final int N = 1024;
+    private static final String CHECKS_OFF = "-Deffectivejava.checks=false";
+    private static final String ASSUMPTIONS_OFF = "-Deffectivejava.assumptions=false";
+
+    private Object[] refs;
+    private long[] values;
+
+    @Setup
+    public void setup() {
+        refs = new Object[N];
+        values = new long[N];
+        for (int i = 0; i < N; i++) {
+            refs[i] = i;
+            values[i] = i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public long baseline() {
+        long sum = 0;
+        for (int i = 0; i < N; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public long handWritten() {
+        long sum = 0;
+        long last = values[N - 1];
+        for (int i = 0; i < N; i++) {
+            if (refs[i] == null) {
+                throw new NullPointerException("ref " + i + " is null");
+            }
+            if (values[i] > last) {
+                throw new IllegalArgumentException(values[i] + " > " + last);
+            }
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public long checks() {
+        return checked();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    @Fork(value = 2, jvmArgsAppend = CHECKS_OFF)
+    public long checksOff() {
+        return checked();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public long assumptions() {
+        return assumed();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    @Fork(value = 2, jvmArgsAppend = ASSUMPTIONS_OFF)
+    public long assumptionsOff() {
+        return assumed();
+    }
+
+    private long checked() {
+        long sum = 0;
+        long last = values[N - 1];
+        for (int i = 0; i < N; i++) {
+            Preconditions.checkNotNull(refs[i], "ref %s is null", "?");
+            Preconditions.checkArgument(values[i] <= last, "%s > %s", values[i], last);
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    private long assumed() {
+        long sum = 0;
+        long last = values[N - 1];
+        for (int i = 0; i < N; i++) {
+            Preconditions.assumeNotNull(refs[i], "ref is null");
+            Preconditions.assume(values[i] <= last, "out of order");
+            sum += values[i];
+        }
+        return sum;
+    }
+}
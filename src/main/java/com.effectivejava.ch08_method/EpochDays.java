@@ -0,0 +1,71 @@
+package com.effectivejava.ch08_method;
+
+import java.time.LocalDate;
+
+/**
+ * Encodes the LocalDates of a Period as int epoch days for primitive storage.
+ *
+ * An int covers about 5.8 million years around 1970, which is plenty for real dates. The
+ * open-ended markers LocalDate.MIN and LocalDate.MAX get codes of their own, and so does
+ * a missing date.
+ */
+final class EpochDays {
+
+    static final int NULL = Integer.MIN_VALUE;
+    static final int MIN = Integer.MIN_VALUE + 1;
+    static final int MAX = Integer.MAX_VALUE;
+
+    private EpochDays() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if date is neither LocalDate.MIN, LocalDate.MAX nor within the int range of epoch days
+     */
+    static int encode(LocalDate date) {
+        if (date == null) {
+            return NULL;
+        }
+        if (date.equals(LocalDate.MIN)) {
+            return MIN;
+        }
+        if (date.equals(LocalDate.MAX)) {
+            return MAX;
+        }
+        long day = date.toEpochDay();
+        if (day <= MIN || day >= MAX) {
+            throw new IllegalArgumentException("Date out of range: " + date);
+        }
+        return (int) day;
+    }
+
+    static LocalDate decode(int day) {
+        switch (day) {
+            case NULL:
+                return null;
+            case MIN:
+                return LocalDate.MIN;
+            case MAX:
+                return LocalDate.MAX;
+            default:
+                return LocalDate.ofEpochDay(day);
+        }
+    }
+
+    /**
+     * Same as {@code decode(day).toEpochDay()}, without the LocalDate.
+     *
+     * @throws IllegalStateException if day is NULL
+     */
+    static long toEpochDay(int day) {
+        switch (day) {
+            case NULL:
+                throw new IllegalStateException("No LocalDate");
+            case MIN:
+                return LocalDate.MIN.toEpochDay();
+            case MAX:
+                return LocalDate.MAX.toEpochDay();
+            default:
+                return day;
+        }
+    }
+}
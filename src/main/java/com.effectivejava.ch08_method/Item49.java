@@ -22,7 +22,7 @@ public class Item49 {
         if (m.signum() <= 0){
             throw new ArithmeticException("Modulus <= 0" + m);
         }
-        return m.mod(new BigInteger("10"));
+        return m.mod(BigInteger.TEN);
     }
 
     /*@NotNull/@Nullable*/
@@ -39,12 +39,14 @@ public class Item49 {
      */
     public BigInteger Mod(/* solution 1 @NotNull*/ BigInteger m){
         // solutions 2 m = Objects.requireNonNull(m, "the value of m is null");
-        /* solutions 3*/ assert m !=null;
+        // solutions 3 assert m !=null;
+        /* solutions 4: an assertion the JIT folds away when disabled; m.signum() still throws NPE then */
+        Preconditions.assumeNotNull(m, "the value of m is null");
 
         if (m.signum() <= 0){
             throw new ArithmeticException("Modulus <= 0" + m);
         }
-        return m.mod(new BigInteger("10"));
+        return m.mod(BigInteger.TEN);
     }
 
     public static void main(String[] args){
@@ -0,0 +1,286 @@
+package com.effectivejava.ch08_method;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Reduces many values by one fixed modulus, with the contract of {@link Item49#mod}: the
+ * result is never negative, and a modulus less than or equal to 0 is rejected with an
+ * ArithmeticException.
+ *
+ * Everything that depends only on the modulus is computed once, in the constructor. When
+ * the modulus fits in a long, reduction uses Barrett's method: the division becomes a
+ * multiplication by a precomputed reciprocal and at most two corrections. modPow
+ * multiplies residues in longs, through Montgomery multiplication when their products no
+ * longer fit in 64 bits. Everything else falls back to BigInteger.
+ */
+public final class ModReducer {
+
+    private static final BigInteger TWO_TO_THE_128 = BigInteger.ONE.shiftLeft(128);
+
+    private final BigInteger modulus;
+
+    // Zero when the modulus does not fit in a long
+    private final long m;
+    // floor((2^64 - 1) / m), unsigned
+    private final long barrett;
+    // -m^-1 mod 2^64 and 2^128 mod m, for an odd modulus of 32 bits or more
+    private final long montgomeryInverse;
+    private final long montgomeryR2;
+
+    /**
+     * @param modulus the modulus, which must be positive
+     * @throws ArithmeticException if modulus is less than or equal to 0
+     */
+    public ModReducer(BigInteger modulus) {
+        if (modulus.signum() <= 0) {
+            throw new ArithmeticException("Modulus <= 0: " + modulus);
+        }
+        this.modulus = modulus;
+        if (modulus.bitLength() < Long.SIZE) {
+            m = modulus.longValue();
+            barrett = Long.divideUnsigned(-1L, m);
+        } else {
+            m = 0;
+            barrett = 0;
+        }
+        if (m != 0 && !productsFitInLong() && (m & 1) == 1) {
+            montgomeryInverse = -inverseModTwoTo64(m);
+            montgomeryR2 = TWO_TO_THE_128.mod(modulus).longValue();
+        } else {
+            montgomeryInverse = 0;
+            montgomeryR2 = 0;
+        }
+    }
+
+    /**
+     * @throws ArithmeticException if m is less than or equal to 0
+     */
+    public static ModReducer of(long m) {
+        return new ModReducer(BigInteger.valueOf(m));
+    }
+
+    public BigInteger modulus() {
+        return modulus;
+    }
+
+    /**
+     * Returns true if the long methods can be used, that is the modulus is below 2^63.
+     */
+    public boolean fitsInLong() {
+        return m != 0;
+    }
+
+    /**
+     * Returns x mod m, which is never negative.
+     *
+     * @throws IllegalStateException if the modulus does not fit in a long
+     */
+    public long reduce(long x) {
+        checkFitsInLong();
+        if (x >= 0) {
+            return barrett(x);
+        }
+        // -(x + 1) can't overflow, even for Long.MIN_VALUE
+        long r = barrett(-(x + 1));
+        return m - 1 - r;
+    }
+
+    /**
+     * Returns x mod m, which is never negative.
+     */
+    public BigInteger reduce(BigInteger x) {
+        if (m != 0 && x.bitLength() < Long.SIZE) {
+            return BigInteger.valueOf(reduce(x.longValue()));
+        }
+        return x.mod(modulus);
+    }
+
+    /**
+     * Replaces every value with its residue.
+     *
+     * @throws IllegalStateException if the modulus does not fit in a long
+     */
+    public void reduce(long[] values) {
+        checkFitsInLong();
+        for (int i = 0; i < values.length; i++) {
+            long x = values[i];
+            values[i] = x >= 0 ? barrett(x) : m - 1 - barrett(-(x + 1));
+        }
+    }
+
+    /**
+     * Replaces every value with its residue.
+     *
+     * @throws NullPointerException if an element is null
+     */
+    public void reduce(BigInteger[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = reduce(values[i]);
+        }
+    }
+
+    /**
+     * Returns base^exponent mod m.
+     *
+     * @throws IllegalStateException if the modulus does not fit in a long
+     * @throws ArithmeticException if exponent is negative
+     */
+    public long modPow(long base, long exponent) {
+        checkFitsInLong();
+        if (exponent < 0) {
+            throw new ArithmeticException("Negative exponent: " + exponent);
+        }
+        if (m == 1) {
+            return 0;
+        }
+        long b = reduce(base);
+        if (productsFitInLong()) {
+            long result = 1;
+            for (long e = exponent; e != 0; e >>>= 1) {
+                if ((e & 1) == 1) {
+                    result = barrett(result * b);
+                }
+                b = barrett(b * b);
+            }
+            return result;
+        }
+        if (montgomeryR2 != 0) {
+            return montgomeryPow(b, exponent);
+        }
+        return BigInteger.valueOf(b).modPow(BigInteger.valueOf(exponent), modulus).longValue();
+    }
+
+    /**
+     * Returns base^exponent mod m. A negative exponent needs base to be invertible mod m.
+     *
+     * @throws ArithmeticException if exponent is negative and base is not relatively prime to m
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exponent) {
+        if (m != 0 && exponent.signum() >= 0 && exponent.bitLength() < Long.SIZE) {
+            return BigInteger.valueOf(modPow(reduce(base).longValue(), exponent.longValue()));
+        }
+        return base.modPow(exponent, modulus);
+    }
+
+    private void checkFitsInLong() {
+        if (m == 0) {
+            throw new IllegalStateException("Modulus does not fit in a long: " + modulus);
+        }
+    }
+
+    // (m - 1)^2 fits in a long
+    private boolean productsFitInLong() {
+        return m <= 3_037_000_499L;
+    }
+
+    // x mod m for 0 <= x < 2^63: the estimated quotient is short by at most 2
+    private long barrett(long x) {
+        long q = multiplyHighUnsigned(x, barrett);
+        long r = x - q * m;
+        while (r >= m) {
+            r -= m;
+        }
+        return r;
+    }
+
+    private long montgomeryPow(long base, long exponent) {
+        long b = montgomeryMultiply(base, montgomeryR2);
+        long result = montgomeryMultiply(1, montgomeryR2);
+        for (long e = exponent; e != 0; e >>>= 1) {
+            if ((e & 1) == 1) {
+                result = montgomeryMultiply(result, b);
+            }
+            b = montgomeryMultiply(b, b);
+        }
+        return montgomeryReduce(0, result);
+    }
+
+    // a * b / 2^64 mod m, for a, b < m
+    private long montgomeryMultiply(long a, long b) {
+        return montgomeryReduce(multiplyHighUnsigned(a, b), a * b);
+    }
+
+    // (hi * 2^64 + lo) / 2^64 mod m, for hi < m. Every intermediate stays below 2m < 2^64
+    private long montgomeryReduce(long hi, long lo) {
+        long q = lo * montgomeryInverse;
+        // lo + low64(q * m) is 0 mod 2^64 by construction, with a carry unless lo is 0
+        long r = hi + multiplyHighUnsigned(q, m) + (lo != 0 ? 1 : 0);
+        return Long.compareUnsigned(r, m) >= 0 ? r - m : r;
+    }
+
+    // Newton's iteration doubles the correct low bits each step, starting from 3
+    private static long inverseModTwoTo64(long odd) {
+        long inverse = odd;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - odd * inverse;
+        }
+        return inverse;
+    }
+
+    // The high 64 bits of the unsigned 128-bit product, for Java 8 (Math.multiplyHigh is 9+)
+    static long multiplyHighUnsigned(long a, long b) {
+        long aLo = a & 0xFFFFFFFFL, aHi = a >>> 32;
+        long bLo = b & 0xFFFFFFFFL, bHi = b >>> 32;
+        long loLo = aLo * bLo;
+        long hiLo = aHi * bLo;
+        long loHi = aLo * bHi;
+        long hiHi = aHi * bHi;
+        long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+        return (hiLo >>> 32) + (cross >>> 32) + hiHi;
+    }
+
+    /**
+     * Benchmark against BigInteger.mod and BigInteger.modPow.
+     */
+    public static void main(String[] args) {
+        int n = 5_000_000;
+        Random random = new Random(42);
+        long[] values = random.longs(n).toArray();
+        long[] work = new long[n];
+
+        for (long modulus : new long[]{1_000_000_007L, (1L << 61) - 1}) {
+            ModReducer reducer = ModReducer.of(modulus);
+            BigInteger bigModulus = BigInteger.valueOf(modulus);
+            for (int round = 0; round < 3; round++) {
+                long t0 = System.nanoTime();
+                System.arraycopy(values, 0, work, 0, n);
+                reducer.reduce(work);
+                long reducerNs = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                long check = 0;
+                for (long v : values) {
+                    check += BigInteger.valueOf(v).mod(bigModulus).longValue();
+                }
+                long bigNs = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (long v : values) {
+                    check -= Math.floorMod(v, modulus);
+                }
+                long floorModNs = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                long pow = 0;
+                for (int i = 0; i < 100_000; i++) {
+                    pow += reducer.modPow(values[i], values[i + 1] >>> 1);
+                }
+                long powNs = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (int i = 0; i < 100_000; i++) {
+                    pow -= BigInteger.valueOf(values[i]).modPow(BigInteger.valueOf(values[i + 1] >>> 1), bigModulus).longValue();
+                }
+                long bigPowNs = System.nanoTime() - t0;
+
+                if (round == 2) {
+                    System.out.printf("m=%d: reduce %.1f ns, BigInteger.mod %.1f ns, Math.floorMod %.1f ns, "
+                            + "modPow %.0f ns, BigInteger.modPow %.0f ns (differences %d %d)%n", modulus,
+                        (double) reducerNs / n, (double) bigNs / n, (double) floorModNs / n,
+                        powNs / 1e5, bigPowNs / 1e5, check, pow);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.effectivejava.ch08_method;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses among overloads by the runtime classes of the arguments, where
+ * {@link StaticDispatch} is stuck with the compile-time types (Item 52).
+ *
+ * The methods of one name declared by a class are found once, through a Lookup supplied
+ * by the caller, so private ones work too. An instance method takes its receiver as the
+ * first argument, so the receiver takes part in the dispatch. Among the applicable methods
+ * the most specific one is chosen, as the compiler would for those argument types, and a
+ * null argument is applicable to any reference parameter. As in the first two phases of
+ * JLS 15.12.2, methods that need no unboxing win over those that do, so an Integer goes to
+ * foo(Object) rather than foo(int), and an unboxed argument may be widened, a Short to int.
+ * Variable arity methods only take their array.
+ *
+ * The choice for each tuple of argument classes is cached as a MethodHandle adapted to
+ * Object parameters. The cache is a tree of ClassValues, one level per argument, so a
+ * warmed-up call costs one ClassValue lookup per argument and an invokeExact. Through the
+ * fixed-arity invoke methods it allocates nothing when the chosen method returns a
+ * reference or void; a primitive result is boxed to Object by the adapted handle.
+ */
+public final class MultiDispatcher {
+
+    private final Class<?> owner;
+    private final String name;
+    private final List<MethodHandle> methods;
+    // Indexed by arity: a Node, or the Target itself for no arguments
+    private final Object[] roots;
+
+    private static final class Target {
+        final MethodHandle exact;
+        final MethodHandle spread;
+
+        Target(MethodHandle method, int arity) {
+            exact = method.asType(MethodType.genericMethodType(arity));
+            spread = exact.asSpreader(Object[].class, arity);
+        }
+    }
+
+    // Maps the class of the next argument to a deeper Node, or to a Target after the last one
+    private final class Node extends ClassValue<Object> {
+        private final int arity;
+        private final Class<?>[] prefix;
+
+        Node(int arity, Class<?>[] prefix) {
+            this.arity = arity;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected Object computeValue(Class<?> type) {
+            Class<?>[] key = new Class<?>[prefix.length + 1];
+            System.arraycopy(prefix, 0, key, 0, prefix.length);
+            key[prefix.length] = type;
+            return key.length == arity ? resolve(key) : new Node(arity, key);
+        }
+    }
+
+    private MultiDispatcher(Class<?> owner, String name, List<MethodHandle> methods) {
+        this.owner = owner;
+        this.name = name;
+        this.methods = methods;
+        int maxArity = 0;
+        for (MethodHandle m : methods) {
+            maxArity = Math.max(maxArity, m.type().parameterCount());
+        }
+        roots = new Object[maxArity + 1];
+        for (MethodHandle m : methods) {
+            int arity = m.type().parameterCount();
+            if (roots[arity] == null) {
+                roots[arity] = arity == 0 ? new Target(m, 0) : new Node(arity, new Class<?>[0]);
+            }
+        }
+    }
+
+    /**
+     * Finds the methods named name declared by owner.
+     *
+     * @throws IllegalArgumentException if owner declares no method named name
+     * @throws IllegalAccessException if lookup can't access one of them
+     */
+    public static MultiDispatcher of(MethodHandles.Lookup lookup, Class<?> owner, String name)
+            throws IllegalAccessException {
+        List<MethodHandle> methods = new ArrayList<>();
+        for (Method m : owner.getDeclaredMethods()) {
+            if (m.getName().equals(name) && !m.isBridge() && !m.isSynthetic()) {
+                methods.add(lookup.unreflect(m));
+            }
+        }
+        if (methods.isEmpty()) {
+            throw new IllegalArgumentException(owner.getName() + " declares no method " + name);
+        }
+        return new MultiDispatcher(owner, name, methods);
+    }
+
+    /**
+     * Calls the most specific method for no arguments.
+     */
+    public Object invoke() {
+        Target target = (Target) root(0);
+        try {
+            return target.exact.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * Calls the most specific method for the runtime class of a. A void method returns null.
+     *
+     * @throws IllegalArgumentException if no method is applicable, or none is most specific
+     * @throws UndeclaredThrowableException if the method throws a checked exception
+     */
+    public Object invoke(Object a) {
+        Target target = (Target) ((Node) root(1)).get(classOf(a));
+        try {
+            return target.exact.invokeExact(a);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * Calls the most specific method for the runtime classes of a and b.
+     *
+     * @throws IllegalArgumentException if no method is applicable, or none is most specific
+     * @throws UndeclaredThrowableException if the method throws a checked exception
+     */
+    public Object invoke(Object a, Object b) {
+        Node second = (Node) ((Node) root(2)).get(classOf(a));
+        Target target = (Target) second.get(classOf(b));
+        try {
+            return target.exact.invokeExact(a, b);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * Calls the most specific method for the runtime classes of args, for any arity.
+     *
+     * @throws IllegalArgumentException if no method is applicable, or none is most specific
+     * @throws UndeclaredThrowableException if the method throws a checked exception
+     */
+    public Object invokeWithArguments(Object... args) {
+        Object node = root(args.length);
+        for (Object arg : args) {
+            node = ((Node) node).get(classOf(arg));
+        }
+        try {
+            return ((Target) node).spread.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    private Object root(int arity) {
+        Object root = arity < roots.length ? roots[arity] : null;
+        if (root == null) {
+            throw new IllegalArgumentException(owner.getName() + " declares no method " + name
+                + " with " + arity + " parameters");
+        }
+        return root;
+    }
+
+    // null is cached under Void, which has no instances
+    private static Class<?> classOf(Object arg) {
+        return arg == null ? Void.class : arg.getClass();
+    }
+
+    private Target resolve(Class<?>[] argClasses) {
+        List<MethodHandle> applicable = applicable(argClasses, false);
+        if (applicable.isEmpty()) {
+            applicable = applicable(argClasses, true);
+        }
+        MethodHandle best = null;
+        for (MethodHandle candidate : applicable) {
+            boolean mostSpecific = true;
+            for (MethodHandle other : applicable) {
+                mostSpecific &= isMoreSpecific(candidate.type(), other.type());
+            }
+            if (mostSpecific) {
+                best = candidate;
+                break;
+            }
+        }
+        if (best == null) {
+            StringBuilder sb = new StringBuilder(applicable.isEmpty() ? "No method " : "Ambiguous method ");
+            sb.append(owner.getName()).append('.').append(name).append('(');
+            for (int i = 0; i < argClasses.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(argClasses[i] == Void.class ? "null" : argClasses[i].getName());
+            }
+            throw new IllegalArgumentException(sb.append(')').toString());
+        }
+        return new Target(best, argClasses.length);
+    }
+
+    private List<MethodHandle> applicable(Class<?>[] argClasses, boolean unboxing) {
+        List<MethodHandle> applicable = new ArrayList<>();
+        for (MethodHandle m : methods) {
+            if (isApplicable(m.type(), argClasses, unboxing)) {
+                applicable.add(m);
+            }
+        }
+        return applicable;
+    }
+
+    private static boolean isApplicable(MethodType type, Class<?>[] argClasses, boolean unboxing) {
+        if (type.parameterCount() != argClasses.length) {
+            return false;
+        }
+        for (int i = 0; i < argClasses.length; i++) {
+            Class<?> parameter = type.parameterType(i);
+            boolean applicable;
+            if (argClasses[i] == Void.class) {
+                applicable = !parameter.isPrimitive();
+            } else if (parameter.isPrimitive()) {
+                Class<?> unboxed = MethodType.methodType(argClasses[i]).unwrap().returnType();
+                applicable = unboxing && unboxed.isPrimitive() && widens(unboxed, parameter);
+            } else {
+                applicable = parameter.isAssignableFrom(argClasses[i]);
+            }
+            if (!applicable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Every parameter of a can be passed to the same parameter of b without boxing
+    private static boolean isMoreSpecific(MethodType a, MethodType b) {
+        for (int i = 0; i < a.parameterCount(); i++) {
+            Class<?> pa = a.parameterType(i);
+            Class<?> pb = b.parameterType(i);
+            boolean subtype = pa.isPrimitive() || pb.isPrimitive()
+                ? pa.isPrimitive() && pb.isPrimitive() && widens(pa, pb)
+                : pb.isAssignableFrom(pa);
+            if (!subtype) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final List<Class<?>> NUMERIC = Arrays.asList(
+        byte.class, short.class, int.class, long.class, float.class, double.class);
+
+    // Identity or widening primitive conversion, JLS 5.1.2
+    private static boolean widens(Class<?> from, Class<?> to) {
+        if (from == to) {
+            return true;
+        }
+        int target = NUMERIC.indexOf(to);
+        int source = from == char.class ? NUMERIC.indexOf(int.class) - 1 : NUMERIC.indexOf(from);
+        return source >= 0 && target > source;
+    }
+
+    // For the benchmark: a hierarchy that also supports double dispatch
+
+    interface ShapeVisitor {
+        int visit(Circle c);
+
+        int visit(Square s);
+
+        int visit(Triangle t);
+    }
+
+    abstract static class Shape {
+        abstract int accept(ShapeVisitor v);
+
+        abstract int sides();
+    }
+
+    static final class Circle extends Shape {
+        @Override
+        int accept(ShapeVisitor v) {
+            return v.visit(this);
+        }
+
+        @Override
+        int sides() {
+            return 0;
+        }
+    }
+
+    static final class Square extends Shape {
+        @Override
+        int accept(ShapeVisitor v) {
+            return v.visit(this);
+        }
+
+        @Override
+        int sides() {
+            return 4;
+        }
+    }
+
+    static final class Triangle extends Shape {
+        @Override
+        int accept(ShapeVisitor v) {
+            return v.visit(this);
+        }
+
+        @Override
+        int sides() {
+            return 3;
+        }
+    }
+
+    static final class Sides implements ShapeVisitor {
+        @Override
+        public int visit(Circle c) {
+            return 0;
+        }
+
+        @Override
+        public int visit(Square s) {
+            return 4;
+        }
+
+        @Override
+        public int visit(Triangle t) {
+            return 3;
+        }
+
+        static int sides(Shape s) {
+            return -1;
+        }
+
+        static int sides(Circle c) {
+            return 0;
+        }
+
+        static int sides(Square s) {
+            return 4;
+        }
+
+        static int sides(Triangle t) {
+            return 3;
+        }
+    }
+
+    /**
+     * Dispatches StaticDispatch.sayHello at runtime, then times dispatch by MultiDispatcher,
+     * by looking up and invoking a Method, by a visitor, and by a plain virtual call.
+     */
+    public static void main(String[] args) throws Exception {
+        MultiDispatcher hello = of(MethodHandles.lookup(), StaticDispatch.class, "sayHello");
+        for (StaticDispatch.Human human : new StaticDispatch.Human[]{
+                new StaticDispatch.Man(), new StaticDispatch.Woman(), new StaticDispatch.Human()}) {
+            hello.invoke(human);
+        }
+
+        MultiDispatcher sides = of(MethodHandles.lookup(), Sides.class, "sides");
+        Sides visitor = new Sides();
+        Random random = new Random(42);
+        Shape[] shapes = new Shape[1 << 12];
+        for (int i = 0; i < shapes.length; i++) {
+            int kind = random.nextInt(3);
+            shapes[i] = kind == 0 ? new Circle() : kind == 1 ? new Square() : new Triangle();
+        }
+
+        int rounds = 2_000;
+        for (int round = 0; round < 5; round++) {
+            long sink = 0;
+
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Shape s : shapes) {
+                    sink += (Integer) sides.invoke(s);
+                }
+            }
+            long dispatcher = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds / 20; r++) {
+                for (Shape s : shapes) {
+                    Method m = Sides.class.getDeclaredMethod("sides", s.getClass());
+                    sink += (Integer) m.invoke(null, s);
+                }
+            }
+            long reflection = (System.nanoTime() - t0) * 20;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Shape s : shapes) {
+                    sink += s.accept(visitor);
+                }
+            }
+            long doubleDispatch = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Shape s : shapes) {
+                    sink += s.sides();
+                }
+            }
+            long virtual = System.nanoTime() - t0;
+
+            double ops = (double) rounds * shapes.length;
+            System.out.printf("MultiDispatcher %.2f ns, reflection %.2f ns, visitor %.2f ns, virtual call %.2f ns (%d)%n",
+                dispatcher / ops, reflection / ops, doubleDispatch / ops, virtual / ops, sink);
+        }
+    }
+}
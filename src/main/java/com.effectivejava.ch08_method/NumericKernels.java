@@ -0,0 +1,468 @@
+package com.effectivejava.ch08_method;
+
+import java.lang.management.ManagementFactory;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Allocation-free numeric kernels, generalizing {@link Varargs#sum}.
+ *
+ * Varargs.sum allocates an array on every call and accumulates in an int that silently
+ * overflows. Here the common small arities get their own overloads (Item 53), integer
+ * sums are accumulated in longs, and the array kernels work on ranges with four
+ * independent accumulators, so consecutive additions don't wait for each other.
+ *
+ * Ranges of at least {@link #PARALLEL_THRESHOLD} elements are split across the common
+ * fork-join pool. A reduction over an array is the best case for parallel streams
+ * (Item 48): the source splits cleanly, and the operations are associative.
+ *
+ * Floating-point sums are reassociated by both the accumulators and the split, so they
+ * may differ from a left-to-right sum in the last bits.
+ */
+public final class NumericKernels {
+
+    public static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    private NumericKernels() {
+    }
+
+    // Item 53: fixed arities for the common cases, varargs only beyond them
+
+    public static long sum() {
+        return 0;
+    }
+
+    public static long sum(int a) {
+        return a;
+    }
+
+    public static long sum(int a, int b) {
+        return (long) a + b;
+    }
+
+    public static long sum(int a, int b, int c) {
+        return (long) a + b + c;
+    }
+
+    public static long sum(int a, int b, int c, int... rest) {
+        return (long) a + b + c + sum(rest, 0, rest.length);
+    }
+
+    // Sums
+
+    public static long sum(int[] a, int from, int to) {
+        checkRange(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToLong(c -> sum0(a, chunkFrom(from, to, c), chunkTo(from, to, c))).sum();
+        }
+        return sum0(a, from, to);
+    }
+
+    /**
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public static long sum(long[] a, int from, int to) {
+        checkRange(a.length, from, to);
+        try {
+            if (to - from >= PARALLEL_THRESHOLD) {
+                return split(from, to).mapToLong(c -> sum0(a, chunkFrom(from, to, c), chunkTo(from, to, c)))
+                    .reduce(0, Math::addExact);
+            }
+            return sum0(a, from, to);
+        } catch (ArithmeticException e) {
+            // A partial sum overflowed, which the total may not, as in {MAX_VALUE, 1, -1}
+            return exactSum(a, from, to);
+        }
+    }
+
+    public static double sum(double[] a, int from, int to) {
+        checkRange(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToDouble(c -> sum0(a, chunkFrom(from, to, c), chunkTo(from, to, c)))
+                .reduce(0, Double::sum);
+        }
+        return sum0(a, from, to);
+    }
+
+    private static long sum0(int[] a, int from, int to) {
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += a[i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    private static long sum0(long[] a, int from, int to) {
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 = Math.addExact(s0, a[i]);
+            s1 = Math.addExact(s1, a[i + 1]);
+            s2 = Math.addExact(s2, a[i + 2]);
+            s3 = Math.addExact(s3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            s0 = Math.addExact(s0, a[i]);
+        }
+        return Math.addExact(Math.addExact(s0, s1), Math.addExact(s2, s3));
+    }
+
+    // Counts the wraparounds of a running sum: the total fits in a long if they cancel out
+    private static long exactSum(long[] a, int from, int to) {
+        long sum = 0;
+        long wraps = 0;
+        for (int i = from; i < to; i++) {
+            long x = a[i];
+            long r = sum + x;
+            if (((sum ^ r) & (x ^ r)) < 0) {
+                wraps += x < 0 ? -1 : 1;
+            }
+            sum = r;
+        }
+        if (wraps != 0) {
+            throw new ArithmeticException("long overflow");
+        }
+        return sum;
+    }
+
+    private static double sum0(double[] a, int from, int to) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += a[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Minimums
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static int min(int[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).map(c -> min0(a, chunkFrom(from, to, c), chunkTo(from, to, c))).min().getAsInt();
+        }
+        return min0(a, from, to);
+    }
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static long min(long[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToLong(c -> min0(a, chunkFrom(from, to, c), chunkTo(from, to, c))).min().getAsLong();
+        }
+        return min0(a, from, to);
+    }
+
+    /**
+     * Like Math.min, the result is NaN if any element is NaN.
+     *
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static double min(double[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToDouble(c -> min0(a, chunkFrom(from, to, c), chunkTo(from, to, c)))
+                .reduce(Double.POSITIVE_INFINITY, Math::min);
+        }
+        return min0(a, from, to);
+    }
+
+    private static int min0(int[] a, int from, int to) {
+        int m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, a[i]);
+            m1 = Math.min(m1, a[i + 1]);
+            m2 = Math.min(m2, a[i + 2]);
+            m3 = Math.min(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, a[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    private static long min0(long[] a, int from, int to) {
+        long m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, a[i]);
+            m1 = Math.min(m1, a[i + 1]);
+            m2 = Math.min(m2, a[i + 2]);
+            m3 = Math.min(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, a[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    private static double min0(double[] a, int from, int to) {
+        double m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, a[i]);
+            m1 = Math.min(m1, a[i + 1]);
+            m2 = Math.min(m2, a[i + 2]);
+            m3 = Math.min(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, a[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    // Maximums
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static int max(int[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).map(c -> max0(a, chunkFrom(from, to, c), chunkTo(from, to, c))).max().getAsInt();
+        }
+        return max0(a, from, to);
+    }
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static long max(long[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToLong(c -> max0(a, chunkFrom(from, to, c), chunkTo(from, to, c))).max().getAsLong();
+        }
+        return max0(a, from, to);
+    }
+
+    /**
+     * Like Math.max, the result is NaN if any element is NaN.
+     *
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static double max(double[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToDouble(c -> max0(a, chunkFrom(from, to, c), chunkTo(from, to, c)))
+                .reduce(Double.NEGATIVE_INFINITY, Math::max);
+        }
+        return max0(a, from, to);
+    }
+
+    private static int max0(int[] a, int from, int to) {
+        int m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static long max0(long[] a, int from, int to) {
+        long m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static double max0(double[] a, int from, int to) {
+        double m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from + 1;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    // Means
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static double mean(int[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        return (double) sum(a, from, to) / (to - from);
+    }
+
+    /**
+     * Accumulates in double, so unlike sum it can't overflow.
+     *
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static double mean(long[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        if (to - from >= PARALLEL_THRESHOLD) {
+            return split(from, to).mapToDouble(c -> doubleSum0(a, chunkFrom(from, to, c), chunkTo(from, to, c)))
+                .reduce(0, Double::sum) / (to - from);
+        }
+        return doubleSum0(a, from, to) / (to - from);
+    }
+
+    /**
+     * @throws NoSuchElementException if the range is empty
+     */
+    public static double mean(double[] a, int from, int to) {
+        checkNotEmpty(a.length, from, to);
+        return sum(a, from, to) / (to - from);
+    }
+
+    private static double doubleSum0(long[] a, int from, int to) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += a[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Splitting and range checks
+
+    // One chunk per PARALLEL_THRESHOLD / 4 elements, at least four
+    private static IntStream split(int from, int to) {
+        return IntStream.range(0, chunks(from, to)).parallel();
+    }
+
+    private static int chunks(int from, int to) {
+        return Math.max(4, (to - from) / (PARALLEL_THRESHOLD / 4));
+    }
+
+    private static int chunkFrom(int from, int to, int chunk) {
+        return from + (int) ((long) (to - from) * chunk / chunks(from, to));
+    }
+
+    private static int chunkTo(int from, int to, int chunk) {
+        return chunkFrom(from, to, chunk + 1);
+    }
+
+    // Same exceptions as java.util.Arrays
+    private static void checkRange(int length, int from, int to) {
+        if (from > to) {
+            throw new IllegalArgumentException("from(" + from + ") > to(" + to + ")");
+        }
+        if (from < 0) {
+            throw new ArrayIndexOutOfBoundsException(from);
+        }
+        if (to > length) {
+            throw new ArrayIndexOutOfBoundsException(to);
+        }
+    }
+
+    private static void checkNotEmpty(int length, int from, int to) {
+        checkRange(length, from, to);
+        if (from == to) {
+            throw new NoSuchElementException("Empty range");
+        }
+    }
+
+    /**
+     * Time and allocation per call of the varargs, fixed-arity and bulk paths.
+     */
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int calls = 50_000_000;
+        int[] three = {1, 2, 3};
+
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sink += Varargs.sum(i, 2, 3);
+            }
+            report(round, "Varargs.sum(a, b, c)", t0, threads.getThreadAllocatedBytes(thread) - bytes, calls, sink);
+
+            bytes = threads.getThreadAllocatedBytes(thread);
+            t0 = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sink += sum(i, 2, 3);
+            }
+            report(round, "sum(a, b, c)", t0, threads.getThreadAllocatedBytes(thread) - bytes, calls, sink);
+
+            bytes = threads.getThreadAllocatedBytes(thread);
+            t0 = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                three[0] = i;
+                sink += sum(three, 0, 3);
+            }
+            report(round, "sum(int[], 0, 3)", t0, threads.getThreadAllocatedBytes(thread) - bytes, calls, sink);
+        }
+
+        int[] large = new Random(42).ints(1 << 24).toArray();
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            long naive = 0;
+            for (int v : large) {
+                naive += v;
+            }
+            long naiveNs = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            long sequential = sum0(large, 0, large.length);
+            long sequentialNs = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            long parallel = sum(large, 0, large.length);
+            long parallelNs = System.nanoTime() - t0;
+
+            if (round == 2) {
+                System.out.printf("%,d ints: for-each %.2f ms, four accumulators %.2f ms, parallel %.2f ms (%b)%n",
+                    large.length, naiveNs / 1e6, sequentialNs / 1e6, parallelNs / 1e6, naive == sequential && sequential == parallel);
+            }
+        }
+    }
+
+    private static void report(int round, String name, long t0, long bytes, int calls, long sink) {
+        long ns = System.nanoTime() - t0;
+        if (round == 2) {
+            System.out.printf("%-22s %.2f ns/call, %.2f bytes/call (%d)%n", name, (double) ns / calls, (double) bytes / calls, sink);
+        }
+    }
+}
@@ -1,59 +1,224 @@
 package com.effectivejava.ch08_method;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Objects;
+import java.util.Random;
 
 /**
  * Author Mr.Pro
  * Date   2018/6/24 = 下午8:38
+ *
+ * The period is kept as primitives: epoch millis for the Dates and EpochDays codes for the
+ * LocalDates. Nothing mutable is shared with callers, on the way in or out, and the
+ * primitive accessors, {@link #overlaps}, {@link #contains} and {@link #compareTo} never
+ * allocate. The Date and LocalDate getters remain as adapters that build a new object on
+ * each call.
  */
-public final class Period {
+public final class Period implements Serializable, Comparable<Period> {
 
-    private final Date start;
-    private final Date end;
+    // Never in a stream, where writeReplace puts the proxy instead
+    private static final long serialVersionUID = 1L;
 
+    private final long start;
+    private final long end;
 
-    private final LocalDate startLocalDate;
-    private final LocalDate endLocalDate;
+    // EpochDays codes
+    private final int startLocalDate;
+    private final int endLocalDate;
 
     /**
      * @param start          the beginning of the period
      * @param end            the end of the period, must not precede start
      * @param startLocalDate the beginning of the period
      * @param endLocalDate   the end of the period, must not precede start
-     * @throws IllegalArgumentException if start is after end, or startLocalDate is after endLocalDate
+     * @throws IllegalArgumentException if start is after end, or startLocalDate is after endLocalDate,
+     *                                  or a LocalDate is outside the int range of epoch days
      * @throws NullPointerException     if start or end is null
      */
     public Period(Date start, Date end, LocalDate startLocalDate, LocalDate endLocalDate) {
-        this.startLocalDate = startLocalDate;
-        this.endLocalDate = endLocalDate;
         /*
         * from Item-49
         * */
-        Objects.requireNonNull(start, "start is null");
-        Objects.requireNonNull(end, "end is null");
-        if (start.compareTo(end) > 0) {
-            throw new IllegalArgumentException(start + " after " + end);
-        }
+        Preconditions.checkNotNull(start, "start is null");
+        Preconditions.checkNotNull(end, "end is null");
+        // Item 50: read each Date once, and check the copies
+        this.start = start.getTime();
+        this.end = end.getTime();
+        checkOrder(this.start, this.end);
+        this.startLocalDate = EpochDays.encode(startLocalDate);
+        this.endLocalDate = EpochDays.encode(endLocalDate);
+    }
+
+    // For the column stores and codecs, which hold validated primitives already
+    Period(long start, long end, int startDay, int endDay) {
+        checkOrder(start, end);
         this.start = start;
         this.end = end;
+        this.startLocalDate = startDay;
+        this.endLocalDate = endDay;
+    }
+
+    /**
+     * The start-not-after-end rule of the constructor, for code that keeps periods as epoch millis.
+     *
+     * @throws IllegalArgumentException if start is after end
+     */
+    static void checkOrder(long start, long end) {
+        if (start > end) {
+            throw new IllegalArgumentException(new Date(start) + " after " + new Date(end));
+        }
+    }
+
+    /** Same as {@code getStart().getTime()}, without the copy. */
+    public long startMillis() {
+        return start;
+    }
+
+    /** Same as {@code getEnd().getTime()}, without the copy. */
+    public long endMillis() {
+        return end;
+    }
+
+    public boolean hasStartLocalDate() {
+        return startLocalDate != EpochDays.NULL;
+    }
+
+    public boolean hasEndLocalDate() {
+        return endLocalDate != EpochDays.NULL;
+    }
+
+    /**
+     * Same as {@code getStartLocalDate().toEpochDay()}.
+     *
+     * @throws IllegalStateException if the period has no start LocalDate
+     */
+    public long startEpochDay() {
+        return EpochDays.toEpochDay(startLocalDate);
+    }
+
+    /**
+     * Same as {@code getEndLocalDate().toEpochDay()}.
+     *
+     * @throws IllegalStateException if the period has no end LocalDate
+     */
+    public long endEpochDay() {
+        return EpochDays.toEpochDay(endLocalDate);
+    }
+
+    // Raw EpochDays codes
+    int startDay() {
+        return startLocalDate;
+    }
+
+    int endDay() {
+        return endLocalDate;
+    }
+
+    /**
+     * Returns whether the two periods share at least one instant. Periods are closed, so
+     * one ending when the other starts overlaps it.
+     */
+    public boolean overlaps(Period other) {
+        return start <= other.end && other.start <= end;
+    }
+
+    /**
+     * Returns whether instant, in epoch millis, is within the period, ends included.
+     */
+    public boolean contains(long instant) {
+        return start <= instant && instant <= end;
+    }
+
+    /**
+     * Orders by start, then end, then the LocalDates, consistently with equals.
+     */
+    @Override
+    public int compareTo(Period other) {
+        int c = Long.compare(start, other.start);
+        if (c == 0) {
+            c = Long.compare(end, other.end);
+        }
+        if (c == 0) {
+            c = Integer.compare(startLocalDate, other.startLocalDate);
+        }
+        return c != 0 ? c : Integer.compare(endLocalDate, other.endLocalDate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Period)) {
+            return false;
+        }
+        Period p = (Period) o;
+        return start == p.start && end == p.end && startLocalDate == p.startLocalDate && endLocalDate == p.endLocalDate;
     }
 
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(start);
+        result = 31 * result + Long.hashCode(end);
+        result = 31 * result + startLocalDate;
+        return 31 * result + endLocalDate;
+    }
+
+    /** A new Date on each call; prefer {@link #endMillis()}. */
     public Date getEnd() {
-        return new Date(end.getTime());
+        return new Date(end);
     }
 
+    /** A new Date on each call; prefer {@link #startMillis()}. */
     public Date getStart() {
-        return start;
+        return new Date(start);
     }
 
     public LocalDate getEndLocalDate() {
-        return endLocalDate;
+        return EpochDays.decode(endLocalDate);
     }
 
     public LocalDate getStartLocalDate() {
-        return startLocalDate;
+        return EpochDays.decode(startLocalDate);
+    }
+
+    /**
+     * Serialization proxy for Period - Item 90.
+     *
+     * Writes 24 bytes of data instead of the object graphs of two Dates and two LocalDates.
+     * Deserialization goes through the public constructor, so the invariants are checked
+     * again. A LocalDate beyond the int range of epoch days can't be serialized.
+     */
+    private static class SerializationProxy implements Serializable {
+        private final long start;
+        private final long end;
+        private final int startLocalDate;
+        private final int endLocalDate;
+
+        SerializationProxy(Period p) {
+            this.start = p.start;
+            this.end = p.end;
+            this.startLocalDate = p.startLocalDate;
+            this.endLocalDate = p.endLocalDate;
+        }
+
+        private Object readResolve() {
+            return new Period(new Date(start), new Date(end),
+                EpochDays.decode(startLocalDate), EpochDays.decode(endLocalDate));
+        }
+
+        private static final long serialVersionUID = 2018062420380L;
+    }
+
+    private Object writeReplace() {
+        return new SerializationProxy(this);
+    }
+
+    // The proxy is the only way in
+    private void readObject(ObjectInputStream stream) throws InvalidObjectException {
+        throw new InvalidObjectException("Proxy required");
     }
 
     public static void main(String[] args){
@@ -63,7 +228,64 @@ public final class Period {
         LocalDate endLD =  LocalDate.now();
         Period period = new Period(start, end, startLD, endLD);
         period.getEnd().setYear(100);
+        period.getStart().setTime(0); // a copy too now
+        start.setTime(0); // and so was the argument
         // period.getEndLocalDate() there is not set method
 
+        allocationBenchmark();
+    }
+
+    /**
+     * Time and allocation of a sort and an overlap scan, through the Date getters and
+     * through the primitive accessors, for each round. Once the Date loop is hot, C2 may
+     * scalar-replace the copies, so the early rounds show what they cost before it does
+     * (and wherever escape analysis gives up); run with -XX:-DoEscapeAnalysis to see them
+     * every time. The sort's temporary array is common to both.
+     */
+    private static void allocationBenchmark() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long day = 24L * 60 * 60 * 1000;
+        Random random = new Random(42);
+        Period[] periods = new Period[200_000];
+        for (int i = 0; i < periods.length; i++) {
+            long s = (long) (random.nextDouble() * 3650 * day);
+            periods[i] = new Period(s, s + (long) (random.nextDouble() * day), EpochDays.NULL, EpochDays.NULL);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            Period[] sorted = periods.clone();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long t0 = System.nanoTime();
+            Arrays.sort(sorted, (a, b) -> {
+                int c = a.getStart().compareTo(b.getStart());
+                return c != 0 ? c : a.getEnd().compareTo(b.getEnd());
+            });
+            long overlapping = 0;
+            for (int i = 1; i < sorted.length; i++) {
+                if (!sorted[i].getStart().after(sorted[i - 1].getEnd())) {
+                    overlapping++;
+                }
+            }
+            report(round, "Date getters", t0, threads.getThreadAllocatedBytes(thread) - bytes, overlapping);
+
+            sorted = periods.clone();
+            bytes = threads.getThreadAllocatedBytes(thread);
+            t0 = System.nanoTime();
+            Arrays.sort(sorted);
+            overlapping = 0;
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i].overlaps(sorted[i - 1])) {
+                    overlapping++;
+                }
+            }
+            report(round, "primitive accessors", t0, threads.getThreadAllocatedBytes(thread) - bytes, overlapping);
+        }
+    }
+
+    private static void report(int round, String name, long t0, long bytes, long overlapping) {
+        long ns = System.nanoTime() - t0;
+        System.out.printf("round %d: %-20s sort and scan %6.1f ms, %,12d bytes allocated (%d overlapping)%n",
+            round, name, ns / 1e6, bytes, overlapping);
     }
 }
@@ -0,0 +1,369 @@
+package com.effectivejava.ch08_method;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A live calendar of non-overlapping periods that many threads book and cancel at once.
+ *
+ * Bookings are kept in a ConcurrentSkipListMap by start millis, and there is no global
+ * lock. A booking is first inserted as pending, then every booking that could overlap it is
+ * checked, and only then does it commit with a CAS on its state. Two overlapping requests
+ * always meet, because the one inserted second sees the first in its check. They are ordered
+ * by ticket, taken when tryBook is called (wound-wait): an older request aborts a younger
+ * pending one, which retries with its old ticket, and a younger one waits for an older
+ * pending one to commit or fail. So tryBook only returns false after it saw a committed
+ * booking overlapping its period, and no request waits forever on younger ones.
+ *
+ * A search scans back from its start by the longest live booking, rounded up to a power of
+ * two, so a long period costs scans only while it is booked.
+ *
+ * Like Period, periods are closed: two periods overlap when they share an instant, including
+ * an end that equals a start.
+ */
+public final class PeriodCalendar {
+
+    private static final int PENDING = 0;
+    private static final int COMMITTED = 1;
+    private static final int ABORTED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final class Booking {
+        static final AtomicIntegerFieldUpdater<Booking> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Booking.class, "state");
+
+        final Period period;
+        final long start;
+        final long end;
+        final long ticket;
+        volatile int state = PENDING;
+
+        Booking(Period period, long start, long end, long ticket) {
+            this.period = period;
+            this.start = start;
+            this.end = end;
+            this.ticket = ticket;
+        }
+
+        boolean overlaps(long from, long to) {
+            return start <= to && end >= from;
+        }
+
+        boolean cas(int expected, int next) {
+            return STATE.compareAndSet(this, expected, next);
+        }
+    }
+
+    private final ConcurrentSkipListMap<Long, Booking> bookings = new ConcurrentSkipListMap<>();
+    private final AtomicLong tickets = new AtomicLong();
+    // Live bookings by lengthBucket, counted before they go in the map and after they leave it
+    private final AtomicLongArray lengths = new AtomicLongArray(Long.SIZE);
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * Books period unless it overlaps a booked period.
+     *
+     * @return true if the period was booked, false if it overlaps a booked period
+     * @throws NullPointerException if period is null
+     */
+    public boolean tryBook(Period period) {
+        long start = period.startMillis();
+        long end = period.endMillis();
+        // Most rejections need no insert: a committed overlap is already there
+        if (committedOverlap(start, end)) {
+            return false;
+        }
+        long ticket = tickets.incrementAndGet();
+        int bucket = lengthBucket(start, end);
+        lengths.incrementAndGet(bucket);
+        while (true) {
+            Booking booking = new Booking(period, start, end, ticket);
+            if (!insert(booking)) {
+                lengths.decrementAndGet(bucket);
+                return false;
+            }
+            int outcome = check(booking);
+            if (outcome == COMMITTED && booking.cas(PENDING, COMMITTED)) {
+                size.increment();
+                return true;
+            }
+            // Aborted by us after seeing a committed overlap, or by an older request
+            booking.state = ABORTED;
+            bookings.remove(start, booking);
+            if (outcome == ABORTED) {
+                lengths.decrementAndGet(bucket);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Puts booking in the map under its start. An equal start always overlaps, so a live
+     * booking there is waited for, and if it commits this one fails.
+     */
+    private boolean insert(Booking booking) {
+        Long key = booking.start;
+        while (true) {
+            Booking existing = bookings.putIfAbsent(key, booking);
+            if (existing == null) {
+                return true;
+            }
+            int state = awaitResolved(existing, null);
+            if (state == COMMITTED) {
+                return false;
+            }
+            bookings.remove(key, existing); // Help its owner clean up, then try again
+        }
+    }
+
+    /**
+     * Checks the bookings that could overlap booking. Returns COMMITTED if booking may
+     * commit, ABORTED if a committed booking overlaps it, and PENDING if an older request
+     * aborted it meanwhile.
+     */
+    private int check(Booking booking) {
+        for (Booking other : candidates(booking.start, booking.end).values()) {
+            if (other == booking || !other.overlaps(booking.start, booking.end)) {
+                continue;
+            }
+            int state = other.state;
+            if (state == PENDING && other.ticket < booking.ticket) {
+                state = awaitResolved(other, booking);
+            } else if (state == PENDING && !other.cas(PENDING, ABORTED)) {
+                state = other.state; // It committed or failed first
+            }
+            if (state == COMMITTED) {
+                return ABORTED;
+            }
+            if (booking.state != PENDING) {
+                return PENDING;
+            }
+        }
+        return COMMITTED;
+    }
+
+    // Spins until other is no longer pending, or waiter is aborted, and returns other's state
+    private static int awaitResolved(Booking other, Booking waiter) {
+        int state;
+        while ((state = other.state) == PENDING) {
+            if (waiter != null && waiter.state != PENDING) {
+                return PENDING;
+            }
+            Thread.yield();
+        }
+        return state;
+    }
+
+    private boolean committedOverlap(long from, long to) {
+        for (Booking b : candidates(from, to).values()) {
+            if (b.state == COMMITTED && b.overlaps(from, to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The bit length of the period's length: bucket b holds lengths up to 2^b - 1
+    private static int lengthBucket(long start, long end) {
+        long length = end - start;
+        if (length < 0) { // Overflowed, the period spans most of the long range
+            length = Long.MAX_VALUE;
+        }
+        return Long.SIZE - Long.numberOfLeadingZeros(length);
+    }
+
+    // Every booking, in any state, that could overlap [from, to]
+    private ConcurrentNavigableMap<Long, Booking> candidates(long from, long to) {
+        int bucket = Long.SIZE - 1;
+        while (bucket > 0 && lengths.get(bucket) == 0) {
+            bucket--;
+        }
+        // A booking starting before from - maxLength can't reach from
+        long maxLength = (1L << bucket) - 1;
+        long lowest = from - maxLength;
+        if (lowest > from) {
+            lowest = Long.MIN_VALUE;
+        }
+        return bookings.subMap(lowest, true, to, true);
+    }
+
+    /**
+     * Cancels the booking of period: the booked period with the same start and end.
+     *
+     * @return true if it was booked and is now cancelled
+     */
+    public boolean cancel(Period period) {
+        long start = period.startMillis();
+        long end = period.endMillis();
+        Booking booking = bookings.get(start);
+        if (booking == null || booking.end != end || !booking.cas(COMMITTED, CANCELLED)) {
+            return false;
+        }
+        bookings.remove(start, booking);
+        lengths.decrementAndGet(lengthBucket(start, end));
+        size.decrement();
+        return true;
+    }
+
+    /**
+     * Returns the booked period that contains instant, or null if there is none.
+     */
+    public Period bookedAt(long instant) {
+        for (Booking b : candidates(instant, instant).descendingMap().values()) {
+            if (b.state == COMMITTED && b.overlaps(instant, instant)) {
+                return b.period;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the booked periods that share at least one instant with [from, to], by start.
+     * Like the iterators of ConcurrentSkipListMap, the scan is weakly consistent: it doesn't
+     * block bookings, and may or may not see the ones made while it runs.
+     */
+    public List<Period> overlapping(long from, long to) {
+        List<Period> result = new ArrayList<>();
+        if (from > to) {
+            return result;
+        }
+        for (Booking b : candidates(from, to).values()) {
+            if (b.state == COMMITTED && b.overlaps(from, to)) {
+                result.add(b.period);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of booked periods. Not a snapshot under concurrent changes.
+     */
+    public int size() {
+        return size.intValue();
+    }
+
+    /**
+     * The alternative: a TreeMap behind one lock. As booked periods are disjoint, only the
+     * last one starting no later than a new end can overlap the new period.
+     */
+    private static final class LockedCalendar {
+        private final TreeMap<Long, Long> ends = new TreeMap<>();
+
+        synchronized boolean tryBook(long start, long end) {
+            Map.Entry<Long, Long> floor = ends.floorEntry(end);
+            if (floor != null && floor.getValue() >= start) {
+                return false;
+            }
+            ends.put(start, end);
+            return true;
+        }
+
+        synchronized boolean cancel(long start, long end) {
+            return ends.remove(start, end);
+        }
+    }
+
+    /**
+     * Benchmark: threads book random periods of up to a day over a year and cancel a fifth of
+     * their bookings, on this calendar and on the locked TreeMap. At the end, the booked
+     * periods are checked for overlaps.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int opsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        long day = 24L * 60 * 60 * 1000;
+        long span = 365 * day;
+        int available = Runtime.getRuntime().availableProcessors();
+        System.out.println(available + " processors");
+
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Period[][] requests = new Period[threads][opsPerThread];
+            for (int t = 0; t < threads; t++) {
+                Random random = new Random(t);
+                for (int i = 0; i < opsPerThread; i++) {
+                    long start = (long) (random.nextDouble() * span);
+                    requests[t][i] = new Period(new Date(start), new Date(start + (long) (random.nextDouble() * day)),
+                        null, null);
+                }
+            }
+
+            for (int round = 0; round < 3; round++) {
+                PeriodCalendar calendar = new PeriodCalendar();
+                LongAdder booked = new LongAdder();
+                long lockFree = run(threads, t -> {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        Period p = requests[t][i];
+                        if (calendar.tryBook(p)) {
+                            booked.increment();
+                            if (i % 5 == 0 && calendar.cancel(p)) {
+                                booked.decrement();
+                            }
+                        }
+                    }
+                });
+
+                LockedCalendar locked = new LockedCalendar();
+                long globalLock = run(threads, t -> {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        long start = requests[t][i].startMillis();
+                        long end = requests[t][i].endMillis();
+                        if (locked.tryBook(start, end) && i % 5 == 0) {
+                            locked.cancel(start, end);
+                        }
+                    }
+                });
+
+                if (round == 2) {
+                    List<Period> all = calendar.overlapping(Long.MIN_VALUE, Long.MAX_VALUE);
+                    boolean disjoint = true;
+                    for (int i = 1; i < all.size(); i++) {
+                        disjoint &= all.get(i - 1).endMillis() < all.get(i).startMillis();
+                    }
+                    double ops = (double) threads * opsPerThread;
+                    System.out.printf("%2d threads: skip list %.2f M ops/s, locked TreeMap %.2f M ops/s; "
+                            + "%,d booked, disjoint: %b, counts agree: %b%n", threads, ops / lockFree * 1e3,
+                        ops / globalLock * 1e3, all.size(), disjoint,
+                        all.size() == booked.intValue() && all.size() == calendar.size());
+                }
+            }
+        }
+    }
+
+    private interface Worker {
+        void run(int thread);
+    }
+
+    // Starts the threads together and returns the nanoseconds until the last one finishes
+    private static long run(int threads, Worker worker) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            ts[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                worker.run(id);
+            });
+            ts[t].start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread t : ts) {
+            t.join();
+        }
+        return System.nanoTime() - t0;
+    }
+}
@@ -0,0 +1,295 @@
+package com.effectivejava.ch08_method;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Computes the union of overlapping periods for data sets larger than the heap.
+ *
+ * Input sorted by start is merged in one pass with constant memory. Unsorted input in the
+ * PeriodCodec format is first cut into sorted runs that are spilled to temporary files,
+ * which are then merged k ways into the same one-pass coalescing step.
+ *
+ * Periods are closed, so two periods overlap when the second starts no later than the
+ * first ends. The result keeps the LocalDates of the period that starts a group and of the
+ * period that ends it.
+ */
+public final class PeriodCoalescer {
+
+    /** Records sorted in memory per spilled run, about 28 bytes each. */
+    public static final int DEFAULT_RUN_RECORDS = 4 << 20;
+
+    private PeriodCoalescer() {
+    }
+
+    private interface RecordSink {
+        void accept(long start, long end, int startDay, int endDay) throws IOException;
+    }
+
+    /**
+     * The one-pass step: extends the current group while records overlap it, and emits it
+     * when one doesn't.
+     */
+    private static final class Merger {
+        private final RecordSink sink;
+        private boolean open;
+        private long lastStart = Long.MIN_VALUE;
+        private long start;
+        private long end;
+        private int startDay;
+        private int endDay;
+
+        Merger(RecordSink sink) {
+            this.sink = sink;
+        }
+
+        void accept(long s, long e, int sd, int ed) throws IOException {
+            Period.checkOrder(s, e);
+            if (s < lastStart) {
+                throw new IllegalArgumentException("Input not sorted by start: "
+                    + new Date(s) + " after " + new Date(lastStart));
+            }
+            lastStart = s;
+            if (open && s <= end) {
+                if (e > end) {
+                    end = e;
+                    endDay = ed;
+                }
+                return;
+            }
+            finish();
+            open = true;
+            start = s;
+            end = e;
+            startDay = sd;
+            endDay = ed;
+        }
+
+        void finish() throws IOException {
+            if (open) {
+                open = false;
+                sink.accept(start, end, startDay, endDay);
+            }
+        }
+    }
+
+    /**
+     * Lazily coalesces periods sorted by start.
+     *
+     * @throws IllegalArgumentException from the returned iterator if the input is not sorted by start
+     */
+    public static Iterator<Period> coalesceSorted(Iterator<Period> sorted) {
+        return new Iterator<Period>() {
+            private Period ready;
+            private final Merger merger = new Merger((s, e, sd, ed) ->
+                ready = new Period(s, e, sd, ed));
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (ready == null && sorted.hasNext()) {
+                        Period p = sorted.next();
+                        merger.accept(p.startMillis(), p.endMillis(), p.startDay(), p.endDay());
+                    }
+                    if (ready == null) {
+                        merger.finish();
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e); // The sink does no I/O
+                }
+                return ready != null;
+            }
+
+            @Override
+            public Period next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Period p = ready;
+                ready = null;
+                return p;
+            }
+        };
+    }
+
+    /**
+     * Coalesces a PeriodCodec file already sorted by start, in one pass.
+     *
+     * @return the number of periods written to output
+     * @throws IllegalArgumentException if the input is not sorted by start
+     */
+    public static long coalesceSorted(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = create(output)) {
+            PeriodCodec.Reader reader = new PeriodCodec.Reader(in);
+            PeriodCodec.Writer writer = new PeriodCodec.Writer(out);
+            Merger merger = new Merger(writer::write);
+            while (reader.next()) {
+                merger.accept(reader.startMillis(), reader.endMillis(), reader.startDay(), reader.endDay());
+            }
+            merger.finish();
+            writer.flush();
+            return writer.count();
+        }
+    }
+
+    /**
+     * Coalesces a PeriodCodec file in any order: sorts runs of runRecords periods in memory,
+     * spills them to tempDir, and k-way merges them. The spilled runs are deleted afterwards.
+     *
+     * @return the number of periods written to output
+     */
+    public static long coalesce(Path input, Path output, Path tempDir, int runRecords) throws IOException {
+        if (runRecords < 1) {
+            throw new IllegalArgumentException("runRecords < 1: " + runRecords);
+        }
+        List<Path> runs = new ArrayList<>();
+        try {
+            spillSortedRuns(input, tempDir, runRecords, runs);
+            return mergeRuns(runs, output);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    public static long coalesce(Path input, Path output) throws IOException {
+        Path parent = output.toAbsolutePath().getParent();
+        return coalesce(input, output, parent, DEFAULT_RUN_RECORDS);
+    }
+
+    private static void spillSortedRuns(Path input, Path tempDir, int runRecords, List<Path> runs) throws IOException {
+        long[] starts = new long[runRecords];
+        long[] ends = new long[runRecords];
+        int[] startDays = new int[runRecords];
+        int[] endDays = new int[runRecords];
+        int[] order = new int[runRecords];
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            PeriodCodec.Reader reader = new PeriodCodec.Reader(in);
+            boolean more = true;
+            while (more) {
+                int n = 0;
+                while (n < runRecords && (more = reader.next())) {
+                    starts[n] = reader.startMillis();
+                    ends[n] = reader.endMillis();
+                    startDays[n] = reader.startDay();
+                    endDays[n] = reader.endDay();
+                    order[n] = n;
+                    n++;
+                }
+                if (n == 0) {
+                    break;
+                }
+                // starts is sorted in place; order maps back to the other columns
+                PrimitiveSort.sort(starts, order, 0, n);
+                Path run = Files.createTempFile(tempDir, "periods-run", ".bin");
+                runs.add(run);
+                try (FileChannel out = create(run)) {
+                    PeriodCodec.Writer writer = new PeriodCodec.Writer(out);
+                    for (int i = 0; i < n; i++) {
+                        int row = order[i];
+                        writer.write(starts[i], ends[row], startDays[row], endDays[row]);
+                    }
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    private static long mergeRuns(List<Path> runs, Path output) throws IOException {
+        List<FileChannel> channels = new ArrayList<>();
+        try (FileChannel out = create(output)) {
+            PriorityQueue<PeriodCodec.Reader> heads = new PriorityQueue<>(Math.max(1, runs.size()),
+                Comparator.comparingLong(PeriodCodec.Reader::startMillis));
+            for (Path run : runs) {
+                FileChannel channel = FileChannel.open(run, StandardOpenOption.READ);
+                channels.add(channel);
+                PeriodCodec.Reader reader = new PeriodCodec.Reader(channel);
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+
+            PeriodCodec.Writer writer = new PeriodCodec.Writer(out);
+            Merger merger = new Merger(writer::write);
+            while (!heads.isEmpty()) {
+                PeriodCodec.Reader head = heads.poll();
+                merger.accept(head.startMillis(), head.endMillis(), head.startDay(), head.endDay());
+                if (head.next()) {
+                    heads.add(head);
+                }
+            }
+            merger.finish();
+            writer.flush();
+            return writer.count();
+        } finally {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private static FileChannel create(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Coalesces random periods from a file, by default 10M of them sorted in runs of 1M.
+     */
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int runRecords = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        long hour = 60L * 60 * 1000;
+
+        Path input = Files.createTempFile("periods-in", ".bin");
+        Path output = Files.createTempFile("periods-out", ".bin");
+        try {
+            Random random = new Random(42);
+            try (FileChannel out = create(input)) {
+                PeriodCodec.Writer writer = new PeriodCodec.Writer(out);
+                for (int i = 0; i < n; i++) {
+                    long start = (long) (random.nextDouble() * n * hour);
+                    long end = start + (long) (random.nextDouble() * 2 * hour);
+                    writer.write(start, end, EpochDays.encode(LocalDate.ofEpochDay(start / (24 * hour))),
+                        EpochDays.encode(LocalDate.ofEpochDay(end / (24 * hour))));
+                }
+                writer.flush();
+            }
+
+            long t0 = System.nanoTime();
+            long merged = coalesce(input, output, input.getParent(), runRecords);
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("%,d periods -> %,d in %.1f s (%,.0f periods/s)%n", n, merged, seconds, n / seconds);
+
+            // Each output period starts after the previous one ends
+            boolean disjoint = true;
+            try (FileChannel in = FileChannel.open(output, StandardOpenOption.READ)) {
+                PeriodCodec.Reader reader = new PeriodCodec.Reader(in);
+                long previousEnd = Long.MIN_VALUE;
+                while (reader.next()) {
+                    disjoint &= reader.startMillis() > previousEnd;
+                    previousEnd = reader.endMillis();
+                }
+            }
+            System.out.println("disjoint: " + disjoint);
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.effectivejava.ch08_method;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bulk binary format for periods, streamed through a FileChannel without ObjectOutputStream.
+ *
+ * After an 8-byte header, every period is a fixed 24-byte record: start and end epoch
+ * millis, then start and end epoch days (see EpochDays). Records are validated again when
+ * they are read.
+ */
+public final class PeriodCodec {
+
+    public static final int RECORD_BYTES = PeriodStore.BYTES_PER_PERIOD;
+
+    private static final int MAGIC = 0x50524431; // "PRD1"
+    private static final int HEADER_BYTES = 8;
+    private static final int BUFFER_RECORDS = 4096;
+
+    private PeriodCodec() {
+    }
+
+    /**
+     * Writes records to a channel through a direct buffer. Call {@link #flush()} when done;
+     * closing the channel stays with the caller.
+     */
+    public static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES);
+        private long count;
+
+        public Writer(FileChannel channel) {
+            this.channel = channel;
+            buffer.putInt(MAGIC).putInt(RECORD_BYTES);
+        }
+
+        public void write(Period p) throws IOException {
+            write(p.startMillis(), p.endMillis(), p.startDay(), p.endDay());
+        }
+
+        void write(long start, long end, int startDay, int endDay) throws IOException {
+            if (buffer.remaining() < RECORD_BYTES) {
+                drain();
+            }
+            buffer.putLong(start).putLong(end).putInt(startDay).putInt(endDay);
+            count++;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public void flush() throws IOException {
+            drain();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads records one at a time. The accessors describe the current record without
+     * allocating; {@link #toPeriod()} materializes it.
+     */
+    public static final class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES);
+        private long start;
+        private long end;
+        private int startDay;
+        private int endDay;
+
+        public Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.flip();
+            if (!fill(HEADER_BYTES)) {
+                throw new EOFException("Missing header");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != RECORD_BYTES) {
+                throw new StreamCorruptedException("Not a period file");
+            }
+        }
+
+        /**
+         * Moves to the next record, returning false at the end of the channel.
+         *
+         * @throws StreamCorruptedException if a start is after its end
+         * @throws EOFException if the channel ends inside a record
+         */
+        public boolean next() throws IOException {
+            if (!fill(RECORD_BYTES)) {
+                return false;
+            }
+            start = buffer.getLong();
+            end = buffer.getLong();
+            startDay = buffer.getInt();
+            endDay = buffer.getInt();
+            if (start > end) {
+                throw new StreamCorruptedException(new Date(start) + " after " + new Date(end));
+            }
+            return true;
+        }
+
+        public long startMillis() { return start; }
+        public long endMillis() { return end; }
+        int startDay() { return startDay; }
+        int endDay() { return endDay; }
+
+        public Period toPeriod() {
+            return new Period(start, end, startDay, endDay);
+        }
+
+        // Makes sure the buffer holds at least n bytes, unless the channel is exhausted
+        private boolean fill(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            if (buffer.hasRemaining()) {
+                throw new EOFException("Truncated record");
+            }
+            return false;
+        }
+    }
+
+    public static long write(FileChannel channel, Iterable<Period> periods) throws IOException {
+        Writer writer = new Writer(channel);
+        for (Period p : periods) {
+            writer.write(p);
+        }
+        writer.flush();
+        return writer.count();
+    }
+
+    public static long write(FileChannel channel, PeriodStore store) throws IOException {
+        Writer writer = new Writer(channel);
+        for (PeriodStore.Cursor c = store.cursor(); c.next(); ) {
+            writer.write(c.startMillis(), c.endMillis(), c.startDay(), c.endDay());
+        }
+        writer.flush();
+        return writer.count();
+    }
+
+    /**
+     * Streams the periods of a channel. An IOException while reading is rethrown as an
+     * UncheckedIOException.
+     */
+    public static Iterator<Period> read(FileChannel channel) throws IOException {
+        Reader reader = new Reader(channel);
+        return new Iterator<Period>() {
+            private Boolean hasNext;
+
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null) {
+                    try {
+                        hasNext = reader.next();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return hasNext;
+            }
+
+            @Override
+            public Period next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                hasNext = null;
+                return reader.toPeriod();
+            }
+        };
+    }
+
+    /**
+     * Loads a whole channel into a store without creating Period objects.
+     */
+    public static PeriodStore readStore(FileChannel channel, boolean offHeap) throws IOException {
+        long records = Math.max(0, (channel.size() - channel.position() - HEADER_BYTES) / RECORD_BYTES);
+        int capacity = (int) Math.min(records, Integer.MAX_VALUE / Long.BYTES);
+        PeriodStore store = offHeap ? PeriodStore.offHeap(capacity) : PeriodStore.onHeap(capacity);
+        Reader reader = new Reader(channel);
+        while (reader.next()) {
+            store.add(reader.startMillis(), reader.endMillis(), reader.startDay(), reader.endDay());
+        }
+        return store;
+    }
+
+    // What default serialization would write for Period's fields
+    private static final class DefaultForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final Date start;
+        final Date end;
+        final LocalDate startLocalDate;
+        final LocalDate endLocalDate;
+
+        DefaultForm(Period p) {
+            start = p.getStart();
+            end = p.getEnd();
+            startLocalDate = p.getStartLocalDate();
+            endLocalDate = p.getEndLocalDate();
+        }
+    }
+
+    private interface IoAction {
+        void run() throws Exception;
+    }
+
+    private static void report(String name, int n, Path file, IoAction write, IoAction read) throws Exception {
+        long t0 = System.nanoTime();
+        write.run();
+        long writeNs = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        read.run();
+        long readNs = System.nanoTime() - t0;
+        System.out.printf("%-22s %6.1f bytes/period, write %,10.0f periods/s, read %,10.0f periods/s%n",
+            name, (double) Files.size(file) / n, n / (writeNs / 1e9), n / (readNs / 1e9));
+    }
+
+    /**
+     * Size and throughput of the default serialized form, the serialization proxy and this codec.
+     */
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long day = 24L * 60 * 60 * 1000;
+        PeriodStore store = PeriodStore.onHeap(n);
+        for (int i = 0; i < n; i++) {
+            store.add(i * day, i * day + day, LocalDate.ofEpochDay(i % 20_000), LocalDate.ofEpochDay(i % 20_000 + 1));
+        }
+        Path file = Files.createTempFile("periods", ".bin");
+        try {
+            for (int round = 0; round < 2; round++) {
+                System.out.println(round == 0 ? "warm-up" : "measured");
+                report("default form (OOS)", n, file, () -> {
+                    try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                        for (int i = 0; i < n; i++) {
+                            out.writeObject(new DefaultForm(store.get(i)));
+                        }
+                    }
+                }, () -> {
+                    try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                        for (int i = 0; i < n; i++) {
+                            in.readObject();
+                        }
+                    }
+                });
+                report("serialization proxy", n, file, () -> {
+                    try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                        for (int i = 0; i < n; i++) {
+                            out.writeObject(store.get(i));
+                        }
+                    }
+                }, () -> {
+                    try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                        for (int i = 0; i < n; i++) {
+                            in.readObject();
+                        }
+                    }
+                });
+                report("PeriodCodec", n, file, () -> {
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        write(ch, store);
+                    }
+                }, () -> {
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                        readStore(ch, false);
+                    }
+                });
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.effectivejava.ch08_method;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A static index answering "which periods contain instant t" and "which periods overlap
+ * [from, to]" without scanning every period.
+ *
+ * Periods are kept as primitive epoch millis, sorted by start, and the sorted array is
+ * read as an implicit balanced tree: the element at index i sits at level k when the
+ * lowest k bits of i are all ones, and each node stores the largest end in its subtree.
+ * A query only descends into subtrees whose largest end reaches the query, so it visits
+ * O(log n) nodes plus the ones leading to matches. Results are the positions of the
+ * periods in the input, produced lazily.
+ *
+ * Like Period, intervals are closed: a period ending at t contains t.
+ */
+public final class PeriodIntervalIndex {
+
+    // Subtrees at or below this level are scanned linearly
+    private static final int SCAN_LEVEL = 3;
+
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] maxEnds;
+    private final int[] ids;
+    private final int maxLevel;
+
+    // Takes ownership of starts
+    private PeriodIntervalIndex(long[] starts, long[] ends) {
+        int n = starts.length;
+        this.starts = starts;
+        this.ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        PrimitiveSort.sort(starts, ids, 0, n);
+        this.ends = new long[n];
+        for (int i = 0; i < n; i++) {
+            this.ends[i] = ends[ids[i]];
+        }
+        this.maxEnds = new long[n];
+        this.maxLevel = buildMaxEnds();
+    }
+
+    /**
+     * Builds an index over periods; query results are positions in this list.
+     */
+    public static PeriodIntervalIndex of(List<Period> periods) {
+        int n = periods.size();
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        int i = 0;
+        for (Period p : periods) {
+            starts[i] = p.startMillis();
+            ends[i] = p.endMillis();
+            i++;
+        }
+        return new PeriodIntervalIndex(starts, ends);
+    }
+
+    /**
+     * Builds an index over periods given as columns of epoch millis; query results are
+     * positions in these arrays. The arrays are copied.
+     *
+     * @throws IllegalArgumentException if the arrays differ in length, or a start is after its end
+     */
+    public static PeriodIntervalIndex of(long[] startMillis, long[] endMillis) {
+        if (startMillis.length != endMillis.length) {
+            throw new IllegalArgumentException(startMillis.length + " starts, " + endMillis.length + " ends");
+        }
+        for (int i = 0; i < startMillis.length; i++) {
+            Period.checkOrder(startMillis[i], endMillis[i]);
+        }
+        return new PeriodIntervalIndex(startMillis.clone(), endMillis);
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the positions of the periods that contain instant.
+     */
+    public PrimitiveIterator.OfInt containing(long instant) {
+        return overlapping(instant, instant);
+    }
+
+    /**
+     * Returns the positions of the periods that share at least one instant with [from, to].
+     */
+    public PrimitiveIterator.OfInt overlapping(long from, long to) {
+        return new Query(from, to);
+    }
+
+    public IntStream overlappingStream(long from, long to) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(overlapping(from, to),
+            Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    public int countOverlapping(long from, long to) {
+        int count = 0;
+        for (PrimitiveIterator.OfInt it = overlapping(from, to); it.hasNext(); it.nextInt()) {
+            count++;
+        }
+        return count;
+    }
+
+    // Fills maxEnds level by level and returns the level of the root
+    private int buildMaxEnds() {
+        int n = starts.length;
+        if (n == 0) {
+            return -1;
+        }
+        // The last leaf stands in for missing right children
+        long last = 0;
+        int lastI = 0;
+        for (int i = 0; i < n; i += 2) {
+            lastI = i;
+            last = maxEnds[i] = ends[i];
+        }
+        int k;
+        for (k = 1; (1L << k) <= n; k++) {
+            int x = 1 << (k - 1);
+            int step = x << 2;
+            for (int i = (x << 1) - 1; i < n; i += step) {
+                long left = maxEnds[i - x];
+                long right = i + x < n ? maxEnds[i + x] : last;
+                maxEnds[i] = Math.max(ends[i], Math.max(left, right));
+            }
+            lastI = ((lastI >> k) & 1) != 0 ? lastI - x : lastI + x;
+            if (lastI < n && maxEnds[lastI] > last) {
+                last = maxEnds[lastI];
+            }
+        }
+        return k - 1;
+    }
+
+    /**
+     * Depth-first walk of the implicit tree with an explicit stack, suspended at each match.
+     */
+    private final class Query implements PrimitiveIterator.OfInt {
+        private final long from;
+        private final long to;
+
+        // Pending nodes: index, level and whether the left subtree was already pushed
+        private final int[] xs = new int[128];
+        private final int[] ks = new int[128];
+        private final boolean[] leftDone = new boolean[128];
+        private int sp;
+
+        private int scanI;
+        private int scanEnd;
+        private int next;
+
+        Query(long from, long to) {
+            this.from = from;
+            this.to = to;
+            if (maxLevel >= 0 && from <= to) {
+                push((1 << maxLevel) - 1, maxLevel, false);
+            }
+            next = advance();
+        }
+
+        private void push(int x, int k, boolean done) {
+            xs[sp] = x;
+            ks[sp] = k;
+            leftDone[sp] = done;
+            sp++;
+        }
+
+        private int advance() {
+            int n = starts.length;
+            while (true) {
+                while (scanI < scanEnd) {
+                    int i = scanI++;
+                    if (starts[i] > to) {
+                        scanEnd = 0;
+                    } else if (ends[i] >= from) {
+                        return i;
+                    }
+                }
+                if (sp == 0) {
+                    return -1;
+                }
+                sp--;
+                int x = xs[sp];
+                int k = ks[sp];
+                if (k <= SCAN_LEVEL) {
+                    scanI = x >> k << k;
+                    scanEnd = Math.min(scanI + (1 << (k + 1)) - 1, n);
+                } else if (!leftDone[sp]) {
+                    int y = x - (1 << (k - 1));
+                    push(x, k, true);
+                    if (y >= n || maxEnds[y] >= from) {
+                        push(y, k - 1, false);
+                    }
+                } else if (x < n && starts[x] <= to) {
+                    push(x + (1 << (k - 1)), k - 1, false);
+                    if (ends[x] >= from) {
+                        return x;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            int id = ids[next];
+            next = advance();
+            return id;
+        }
+    }
+
+    /**
+     * Benchmark: periods of up to a day spread over ten years.
+     *
+     * Sizes are taken from the arguments, 1M and 10M by default. 100M needs about 4.5 GB,
+     * so run that with -Xmx6g: `PeriodIntervalIndex 1000000 10000000 100000000`
+     */
+    public static void main(String[] args) {
+        long[] sizes = args.length > 0 ? new long[args.length] : new long[]{1_000_000, 10_000_000};
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Long.parseLong(args[i]);
+        }
+
+        long day = 24L * 60 * 60 * 1000;
+        long span = 10 * 365 * day;
+        for (long size : sizes) {
+            int n = (int) size;
+            Random random = new Random(42);
+            long[] s = new long[n];
+            long[] e = new long[n];
+            for (int i = 0; i < n; i++) {
+                s[i] = (long) (random.nextDouble() * span);
+                e[i] = s[i] + (long) (random.nextDouble() * day);
+            }
+
+            long t0 = System.nanoTime();
+            PeriodIntervalIndex index = of(s, e);
+            long buildMs = (System.nanoTime() - t0) / 1_000_000;
+
+            int queries = 10_000;
+            long matches = 0;
+            t0 = System.nanoTime();
+            for (int q = 0; q < queries; q++) {
+                long t = (long) (random.nextDouble() * span);
+                matches += index.countOverlapping(t, t + (long) (random.nextDouble() * 7 * day));
+                matches += index.countOverlapping(t, t);
+            }
+            double indexUs = (System.nanoTime() - t0) / 1_000.0 / (2 * queries);
+
+            // A linear scan is what the index replaces
+            int scans = 20;
+            t0 = System.nanoTime();
+            for (int q = 0; q < scans; q++) {
+                long t = (long) (random.nextDouble() * span);
+                for (int i = 0; i < n; i++) {
+                    if (s[i] <= t && e[i] >= t) matches++;
+                }
+            }
+            double scanUs = (System.nanoTime() - t0) / 1_000.0 / scans;
+
+            System.out.printf("%,d periods: build %d ms, query %.2f us, linear scan %.0f us (%d matches)%n",
+                n, buildMs, indexUs, scanUs, matches);
+        }
+    }
+}
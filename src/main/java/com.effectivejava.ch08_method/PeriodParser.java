@@ -0,0 +1,274 @@
+package com.effectivejava.ch08_method;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Bulk parser for text periods, one per line as {@code yyyy-MM-dd/yyyy-MM-dd}, into a
+ * PeriodStore.
+ *
+ * A row is checked against the same rules as Period's constructor: both dates must be
+ * real ISO dates and the start must not be after the end. Bad rows don't throw; they are
+ * recorded in {@link Errors} as the row number and a {@link Reason}, five bytes each, and
+ * parsing goes on. Valid rows go straight into the columns of the store, with the dates as
+ * epoch days and as millis at midnight UTC. Lines end in {@code \n} or {@code \r\n}.
+ */
+public final class PeriodParser {
+
+    public enum Reason {
+        /** The row is not {@code yyyy-MM-dd/yyyy-MM-dd}. */
+        FORMAT,
+        /** A month or day is out of range, like 2019-02-29. */
+        INVALID_DATE,
+        /** The start is after the end. */
+        START_AFTER_END
+    }
+
+    /**
+     * The failed rows of a parse, in row order.
+     */
+    public static final class Errors {
+        private int[] rows = new int[16];
+        private byte[] reasons = new byte[16];
+        private int size;
+        private int rowCount;
+
+        private Errors() {
+        }
+
+        void add(int row, Reason reason) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+                reasons = Arrays.copyOf(reasons, size * 2);
+            }
+            rows[size] = row;
+            reasons[size] = (byte) reason.ordinal();
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** The number of rows parsed, valid or not. */
+        public int rowCount() {
+            return rowCount;
+        }
+
+        /** The zero-based row of the i-th error. */
+        public int row(int i) {
+            checkIndex(i);
+            return rows[i];
+        }
+
+        public Reason reason(int i) {
+            checkIndex(i);
+            return REASONS[reasons[i]];
+        }
+
+        private void checkIndex(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("index: " + i + ", size: " + size);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + " errors in " + rowCount + " rows";
+        }
+    }
+
+    private static final Reason[] REASONS = Reason.values();
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int DAYS_0000_TO_1970 = 719_528;
+    // yyyy-MM-dd/yyyy-MM-dd
+    private static final int ROW_LENGTH = 21;
+    // Out of the range of years 0000 to 9999, so never an epoch day
+    private static final long FORMAT_ERROR = Long.MIN_VALUE;
+    private static final long DATE_ERROR = Long.MIN_VALUE + 1;
+
+    private PeriodParser() {
+    }
+
+    /**
+     * Parses every line of text into store.
+     */
+    public static Errors parse(byte[] text, PeriodStore store) {
+        return parse(ByteBuffer.wrap(text), store);
+    }
+
+    /**
+     * Parses the lines from the position to the limit of text into store. The position of
+     * text is not changed.
+     */
+    public static Errors parse(ByteBuffer text, PeriodStore store) {
+        Errors errors = new Errors();
+        int row = 0;
+        int limit = text.limit();
+        for (int i = text.position(); i < limit; row++) {
+            int eol = i;
+            while (eol < limit && text.get(eol) != '\n') {
+                eol++;
+            }
+            int end = eol > i && text.get(eol - 1) == '\r' ? eol - 1 : eol;
+            parseRow(text, i, end, row, store, errors);
+            i = eol + 1;
+        }
+        errors.rowCount = row;
+        return errors;
+    }
+
+    /**
+     * Maps a file and parses its lines into store.
+     *
+     * @throws IOException if the file can't be read, or is larger than 2 GB
+     */
+    public static Errors parse(Path file, PeriodStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB");
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), store);
+        }
+    }
+
+    private static void parseRow(ByteBuffer text, int from, int to, int row, PeriodStore store, Errors errors) {
+        if (to - from != ROW_LENGTH || text.get(from + 10) != '/') {
+            errors.add(row, Reason.FORMAT);
+            return;
+        }
+        long start = epochDay(text, from);
+        long end = epochDay(text, from + 11);
+        if (start == FORMAT_ERROR || end == FORMAT_ERROR) {
+            errors.add(row, Reason.FORMAT);
+        } else if (start == DATE_ERROR || end == DATE_ERROR) {
+            errors.add(row, Reason.INVALID_DATE);
+        } else if (start > end) {
+            errors.add(row, Reason.START_AFTER_END);
+        } else {
+            store.add(start * MILLIS_PER_DAY, end * MILLIS_PER_DAY, (int) start, (int) end);
+        }
+    }
+
+    // The epoch day of yyyy-MM-dd at from, or one of the error values, as LocalDate.toEpochDay
+    private static long epochDay(ByteBuffer text, int from) {
+        int year = digits(text, from, 4);
+        int month = digits(text, from + 5, 2);
+        int day = digits(text, from + 8, 2);
+        if (year < 0 || month < 0 || day < 0 || text.get(from + 4) != '-' || text.get(from + 7) != '-') {
+            return FORMAT_ERROR;
+        }
+        boolean leap = (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(month, leap)) {
+            return DATE_ERROR;
+        }
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12 + day - 1;
+        if (month > 2) {
+            total -= leap ? 1 : 2;
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+
+    private static int lengthOfMonth(int month, boolean leap) {
+        switch (month) {
+            case 2:
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // The value of n ASCII digits at from, or -1 if one isn't a digit
+    private static int digits(ByteBuffer text, int from, int n) {
+        int value = 0;
+        for (int i = from; i < from + n; i++) {
+            int d = text.get(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Benchmark: two million rows with 1% and 20% bad rows, parsed here and by the usual
+     * way of LocalDate.parse and Period's constructor, catching what they throw.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        for (double errorRate : new double[]{0.01, 0.20}) {
+            Random random = new Random(42);
+            StringBuilder sb = new StringBuilder(n * 22);
+            for (int i = 0; i < n; i++) {
+                LocalDate start = LocalDate.ofEpochDay(random.nextInt(20_000));
+                LocalDate end = start.plusDays(random.nextInt(30));
+                String row = start + "/" + end;
+                if (random.nextDouble() < errorRate) {
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            row = row.substring(0, 11) + "x" + row.substring(12);
+                            break;
+                        case 1:
+                            row = row.substring(0, 5) + "13" + row.substring(7);
+                            break;
+                        default:
+                            row = end.plusDays(1) + "/" + end;
+                    }
+                }
+                sb.append(row).append('\n');
+            }
+            byte[] text = sb.toString().getBytes(StandardCharsets.US_ASCII);
+            String[] lines = sb.toString().split("\n");
+
+            for (int round = 0; round < 3; round++) {
+                long t0 = System.nanoTime();
+                PeriodStore store = PeriodStore.onHeap(n);
+                Errors errors = parse(text, store);
+                long bulk = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                int failed = 0;
+                long checksum = 0;
+                for (String line : lines) {
+                    try {
+                        int slash = line.indexOf('/');
+                        LocalDate start = LocalDate.parse(line.substring(0, slash));
+                        LocalDate end = LocalDate.parse(line.substring(slash + 1));
+                        Period p = new Period(new Date(start.toEpochDay() * MILLIS_PER_DAY),
+                            new Date(end.toEpochDay() * MILLIS_PER_DAY), start, end);
+                        checksum += p.getEndLocalDate().toEpochDay() - p.getStartLocalDate().toEpochDay();
+                    } catch (DateTimeParseException | IllegalArgumentException e) {
+                        failed++;
+                    }
+                }
+                long exceptions = System.nanoTime() - t0;
+
+                long bulkChecksum = 0;
+                for (PeriodStore.Cursor c = store.cursor(); c.next(); ) {
+                    bulkChecksum += c.endEpochDay() - c.startEpochDay();
+                }
+                if (round == 2) {
+                    System.out.printf("%.0f%% bad rows: bulk %.0f ns/row, exceptions %.0f ns/row; "
+                            + "%,d errors, results agree: %b%n", errorRate * 100, (double) bulk / n,
+                        (double) exceptions / n, errors.size(), failed == errors.size() && checksum == bulkChecksum);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.effectivejava.ch08_method;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Column store for many periods: epoch millis in two long columns, epoch days in two int
+ * columns, so a period costs 24 bytes instead of a Period with its two Dates and two
+ * LocalDates.
+ *
+ * The columns live on the heap in arrays, or off-heap in direct buffers. Rows are read through a
+ * reusable {@link Cursor} whose accessors return the same values as Period's getters
+ * as primitives, without allocating. Not thread-safe.
+ */
+public final class PeriodStore {
+
+    public static final int BYTES_PER_PERIOD = 2 * Long.BYTES + 2 * Integer.BYTES;
+
+    private final boolean offHeap;
+    // The columns on the heap
+    private long[] startMillis;
+    private long[] endMillis;
+    private int[] startDays;
+    private int[] endDays;
+    // ... or off the heap
+    private LongBuffer directStartMillis;
+    private LongBuffer directEndMillis;
+    private IntBuffer directStartDays;
+    private IntBuffer directEndDays;
+    private int capacity;
+    private int size;
+
+    private PeriodStore(boolean offHeap, int initialCapacity) {
+        if (initialCapacity < 0 || initialCapacity > maxCapacity(offHeap)) {
+            throw new IllegalArgumentException("initialCapacity: " + initialCapacity);
+        }
+        this.offHeap = offHeap;
+        allocate(Math.max(initialCapacity, 16));
+    }
+
+    /**
+     * @throws IllegalArgumentException if initialCapacity is negative or beyond the largest array
+     */
+    public static PeriodStore onHeap(int initialCapacity) {
+        return new PeriodStore(false, initialCapacity);
+    }
+
+    /**
+     * @throws IllegalArgumentException if initialCapacity is negative, or its long column
+     *                                  would exceed the 2 GB of a direct buffer
+     */
+    public static PeriodStore offHeap(int initialCapacity) {
+        return new PeriodStore(true, initialCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Appends a period and returns its row.
+     */
+    public int add(Period period) {
+        return add(period.startMillis(), period.endMillis(), period.startDay(), period.endDay());
+    }
+
+    /**
+     * Appends a period given as epoch millis and LocalDates, and returns its row.
+     *
+     * @throws IllegalArgumentException if start is after end, or a date is outside the int range of epoch days
+     */
+    public int add(long start, long end, LocalDate startLocalDate, LocalDate endLocalDate) {
+        return add(start, end, EpochDays.encode(startLocalDate), EpochDays.encode(endLocalDate));
+    }
+
+    int add(long start, long end, int startDay, int endDay) {
+        Period.checkOrder(start, end);
+        if (size == capacity) {
+            grow();
+        }
+        if (offHeap) {
+            directStartMillis.put(size, start);
+            directEndMillis.put(size, end);
+            directStartDays.put(size, startDay);
+            directEndDays.put(size, endDay);
+        } else {
+            startMillis[size] = start;
+            endMillis[size] = end;
+            startDays[size] = startDay;
+            endDays[size] = endDay;
+        }
+        return size++;
+    }
+
+    /**
+     * Materializes a row as a Period.
+     */
+    public Period get(int row) {
+        checkRow(row);
+        return new Period(startMillis(row), endMillis(row), startDay(row), endDay(row));
+    }
+
+    // Column reads, for a row already checked
+
+    private long startMillis(int row) {
+        return offHeap ? directStartMillis.get(row) : startMillis[row];
+    }
+
+    private long endMillis(int row) {
+        return offHeap ? directEndMillis.get(row) : endMillis[row];
+    }
+
+    private int startDay(int row) {
+        return offHeap ? directStartDays.get(row) : startDays[row];
+    }
+
+    private int endDay(int row) {
+        return offHeap ? directEndDays.get(row) : endDays[row];
+    }
+
+    /**
+     * Returns a cursor positioned before the first row.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row: " + row + ", size: " + size);
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        if (offHeap) {
+            directStartMillis = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+            directEndMillis = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+            directStartDays = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            directEndDays = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } else {
+            startMillis = new long[capacity];
+            endMillis = new long[capacity];
+            startDays = new int[capacity];
+            endDays = new int[capacity];
+        }
+    }
+
+    // A direct buffer is indexed by int bytes, which caps an off-heap column of longs
+    private static int maxCapacity(boolean offHeap) {
+        return offHeap ? Integer.MAX_VALUE / Long.BYTES : Integer.MAX_VALUE - 8;
+    }
+
+    private void grow() {
+        int limit = maxCapacity(offHeap);
+        if (size >= limit) {
+            throw new IllegalStateException("PeriodStore is full: " + size);
+        }
+        int capacity = (int) Math.min(limit, size + (long) (size >> 1) + 1);
+        if (!offHeap) {
+            startMillis = Arrays.copyOf(startMillis, capacity);
+            endMillis = Arrays.copyOf(endMillis, capacity);
+            startDays = Arrays.copyOf(startDays, capacity);
+            endDays = Arrays.copyOf(endDays, capacity);
+            this.capacity = capacity;
+            return;
+        }
+        LongBuffer oldStartMillis = directStartMillis;
+        LongBuffer oldEndMillis = directEndMillis;
+        IntBuffer oldStartDays = directStartDays;
+        IntBuffer oldEndDays = directEndDays;
+        allocate(capacity);
+        oldStartMillis.clear();
+        oldEndMillis.clear();
+        oldStartDays.clear();
+        oldEndDays.clear();
+        directStartMillis.put(oldStartMillis).clear();
+        directEndMillis.put(oldEndMillis).clear();
+        directStartDays.put(oldStartDays).clear();
+        directEndDays.put(oldEndDays).clear();
+    }
+
+    /**
+     * Flyweight view of one row. Moving it to another row allocates nothing.
+     */
+    public final class Cursor {
+        private int row = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Moves to the next row, returning false past the last one.
+         */
+        public boolean next() {
+            if (row + 1 >= size) {
+                row = size;
+                return false;
+            }
+            row++;
+            return true;
+        }
+
+        public Cursor at(int row) {
+            checkRow(row);
+            this.row = row;
+            return this;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        /** Same as {@code startMillis()} of the Period. */
+        public long startMillis() {
+            checkRow(row);
+            return PeriodStore.this.startMillis(row);
+        }
+
+        /** Same as {@code endMillis()} of the Period. */
+        public long endMillis() {
+            checkRow(row);
+            return PeriodStore.this.endMillis(row);
+        }
+
+        public boolean hasStartLocalDate() {
+            return startDay() != EpochDays.NULL;
+        }
+
+        public boolean hasEndLocalDate() {
+            return endDay() != EpochDays.NULL;
+        }
+
+        /**
+         * Same as {@code getStartLocalDate().toEpochDay()} of the Period.
+         *
+         * @throws IllegalStateException if the period has no start LocalDate
+         */
+        public long startEpochDay() {
+            return EpochDays.toEpochDay(startDay());
+        }
+
+        /**
+         * Same as {@code getEndLocalDate().toEpochDay()} of the Period.
+         *
+         * @throws IllegalStateException if the period has no end LocalDate
+         */
+        public long endEpochDay() {
+            return EpochDays.toEpochDay(endDay());
+        }
+
+        public Period toPeriod() {
+            return get(row);
+        }
+
+        // Raw EpochDays codes
+        int startDay() {
+            checkRow(row);
+            return PeriodStore.this.startDay(row);
+        }
+
+        int endDay() {
+            checkRow(row);
+            return PeriodStore.this.endDay(row);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Reports the memory per period of Period objects and of both kinds of store.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long day = 24L * 60 * 60 * 1000;
+
+        long before = usedHeap();
+        List<Period> periods = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            LocalDate d = LocalDate.ofEpochDay(i % 20_000);
+            periods.add(new Period(new Date(i * day), new Date(i * day + day), d, d.plusDays(1)));
+        }
+        long objects = usedHeap() - before;
+
+        PeriodStore heap = onHeap(n);
+        for (Period p : periods) {
+            heap.add(p);
+        }
+
+        PeriodStore direct = offHeap(n);
+        for (Period p : periods) {
+            direct.add(p);
+        }
+
+        long checksum = 0;
+        for (Cursor c = direct.cursor(); c.next(); ) {
+            checksum += c.endMillis() - c.startMillis() + c.endEpochDay() - c.startEpochDay();
+        }
+
+        System.out.printf("List<Period>: %.1f bytes/period%n", (double) objects / n);
+        // The columns are primitive arrays or buffers, so their size follows from the capacity
+        System.out.printf("on-heap store: %.1f bytes/period of heap (%,d rows of capacity)%n",
+            (double) heap.capacity() * BYTES_PER_PERIOD / n, heap.capacity());
+        System.out.printf("off-heap store: %.1f bytes/period of direct memory, ~0 heap (checksum %d)%n",
+            (double) direct.capacity() * BYTES_PER_PERIOD / n, checksum);
+    }
+}
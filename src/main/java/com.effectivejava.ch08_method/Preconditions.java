@@ -0,0 +1,118 @@
+package com.effectivejava.ch08_method;
+
+/**
+ * Parameter checks (Item 49) with lazily formatted messages, which the JIT removes
+ * entirely when they are turned off.
+ *
+ * A failure message is a template with {@code %s} placeholders. It is only formatted when a
+ * check fails, and the fixed-arity overloads (Item 53) need no varargs array and no boxing
+ * of primitive arguments.
+ *
+ * The {@code check} methods enforce the documented contract of a public method; they can be
+ * turned off with {@code -Deffectivejava.checks=false}, for a deployment that trusts its
+ * callers. The {@code assume} methods play the role of {@code assert}: they can be turned
+ * off on their own with {@code -Deffectivejava.assumptions=false}. Each property is read
+ * once into a static final field, so the JIT folds a disabled check away entirely.
+ * PreconditionsBenchmark, under src/jmh, measures both states against an unchecked loop:
+ * turned off, they cost what the loop without them does; turned on, a check costs its test
+ * and branch, somewhat more than the same test written inline.
+ */
+public final class Preconditions {
+
+    static final boolean CHECKS_ENABLED = !"false".equals(System.getProperty("effectivejava.checks"));
+    static final boolean ASSUMPTIONS_ENABLED = !"false".equals(System.getProperty("effectivejava.assumptions"));
+
+    private Preconditions() {
+    }
+
+    /**
+     * @throws NullPointerException with message if checks are enabled and reference is null
+     */
+    public static <T> T checkNotNull(T reference, String message) {
+        if (CHECKS_ENABLED && reference == null) {
+            throw new NullPointerException(message);
+        }
+        return reference;
+    }
+
+    /**
+     * @throws NullPointerException if checks are enabled and reference is null
+     */
+    public static <T> T checkNotNull(T reference, String template, Object arg) {
+        if (CHECKS_ENABLED && reference == null) {
+            throw new NullPointerException(format(template, arg, null));
+        }
+        return reference;
+    }
+
+    /**
+     * @throws IllegalArgumentException with message if checks are enabled and expression is false
+     */
+    public static void checkArgument(boolean expression, String message) {
+        if (CHECKS_ENABLED && !expression) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if checks are enabled and expression is false
+     */
+    public static void checkArgument(boolean expression, String template, long arg) {
+        if (CHECKS_ENABLED && !expression) {
+            throw new IllegalArgumentException(format(template, String.valueOf(arg), null));
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if checks are enabled and expression is false
+     */
+    public static void checkArgument(boolean expression, String template, long arg1, long arg2) {
+        if (CHECKS_ENABLED && !expression) {
+            throw new IllegalArgumentException(format(template, String.valueOf(arg1), String.valueOf(arg2)));
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if checks are enabled and expression is false
+     */
+    public static void checkArgument(boolean expression, String template, Object arg1, Object arg2) {
+        if (CHECKS_ENABLED && !expression) {
+            throw new IllegalArgumentException(format(template, arg1, arg2));
+        }
+    }
+
+    /**
+     * An assertion that can be disabled.
+     *
+     * @throws IllegalStateException with message if assumptions are enabled and expression is false
+     */
+    public static void assume(boolean expression, String message) {
+        if (ASSUMPTIONS_ENABLED && !expression) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * A null check that can be disabled, for code that would throw NullPointerException anyway.
+     *
+     * @throws NullPointerException with message if assumptions are enabled and reference is null
+     */
+    public static <T> T assumeNotNull(T reference, String message) {
+        if (ASSUMPTIONS_ENABLED && reference == null) {
+            throw new NullPointerException(message);
+        }
+        return reference;
+    }
+
+    // Only reached on failure, so it may allocate freely
+    private static String format(String template, Object arg1, Object arg2) {
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        int from = 0;
+        int used = 0;
+        for (int at; used < 2 && (at = template.indexOf("%s", from)) >= 0; used++) {
+            sb.append(template, from, at).append(used == 0 ? arg1 : arg2);
+            from = at + 2;
+        }
+        return sb.append(template, from, template.length()).toString();
+    }
+}
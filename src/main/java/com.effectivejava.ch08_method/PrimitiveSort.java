@@ -0,0 +1,56 @@
+package com.effectivejava.ch08_method;
+
+/**
+ * Sorts a long key column and carries an int column along, without boxing.
+ */
+final class PrimitiveSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private PrimitiveSort() {
+    }
+
+    /**
+     * Sorts keys[from, to) ascending; values[i] moves together with keys[i].
+     */
+    static void sort(long[] keys, int[] values, int from, int to) {
+        sort0(keys, values, from, to - 1);
+    }
+
+    // Quicksort with three-way partitioning, so runs of equal keys cost nothing
+    private static void sort0(long[] keys, int[] values, int lo, int hi) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            int mid = (lo + hi) >>> 1;
+            long a = keys[lo], b = keys[mid], c = keys[hi];
+            long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            int lt = lo, gt = hi, i = lo;
+            while (i <= gt) {
+                if (keys[i] < pivot) {
+                    swap(keys, values, lt++, i++);
+                } else if (keys[i] > pivot) {
+                    swap(keys, values, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // Recurse into the smaller side to bound the stack depth
+            if (lt - lo < hi - gt) {
+                sort0(keys, values, lo, lt - 1);
+                lo = gt + 1;
+            } else {
+                sort0(keys, values, gt + 1, hi);
+                hi = lt - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        int v = values[i]; values[i] = values[j]; values[j] = v;
+    }
+}
@@ -0,0 +1,165 @@
+package com.effectivejava.ch08_method;
+
+import java.util.*;
+
+/**
+ * Classifies collections by their runtime class, which {@link CollectionClassfier} can't do
+ * because overloads are chosen at compile time (Item 52).
+ *
+ * The category of each concrete class is worked out once and cached in a ClassValue, so
+ * classifying a mix of collections costs one cached lookup per element instead of a walk
+ * down an instanceof chain. A ClassValue can't be invalidated, so registering a custom type
+ * publishes a new immutable snapshot with a fresh ClassValue through a volatile field.
+ * Lookups never lock; registration is expected to be rare.
+ */
+public final class RuntimeCollectionClassifier {
+
+    public static final String SET = "set";
+    public static final String LIST = "list";
+    public static final String QUEUE = "queue";
+    public static final String MAP_VIEW = "map view";
+    public static final String UNKNOWN = "unknown";
+
+    private static final class Snapshot extends ClassValue<String> {
+        private final Class<?>[] types;
+        private final String[] categories;
+
+        Snapshot(Class<?>[] types, String[] categories) {
+            this.types = types;
+            this.categories = categories;
+        }
+
+        @Override
+        protected String computeValue(Class<?> type) {
+            // Later registrations take precedence
+            for (int i = types.length - 1; i >= 0; i--) {
+                if (types[i].isAssignableFrom(type)) {
+                    return categories[i];
+                }
+            }
+            if (isMapView(type)) {
+                return MAP_VIEW;
+            }
+            if (Set.class.isAssignableFrom(type)) {
+                return SET;
+            }
+            if (List.class.isAssignableFrom(type)) {
+                return LIST;
+            }
+            if (Queue.class.isAssignableFrom(type)) {
+                return QUEUE;
+            }
+            return UNKNOWN;
+        }
+
+        Snapshot with(Class<?> type, String category) {
+            Class<?>[] t = Arrays.copyOf(types, types.length + 1);
+            String[] c = Arrays.copyOf(categories, categories.length + 1);
+            t[types.length] = type;
+            c[categories.length] = category;
+            return new Snapshot(t, c);
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new Class<?>[0], new String[0]);
+
+    /**
+     * Returns the category of the runtime class of c: a registered category, or one of
+     * MAP_VIEW, SET, LIST, QUEUE and UNKNOWN, checked in that order. A keySet or entrySet
+     * is a map view, although it is also a set.
+     *
+     * Only the class is looked at, so a view wrapped in a class that also wraps plain
+     * collections is classified by the wrapper. For example, the keySet of
+     * Collections.unmodifiableMap is an UnmodifiableSet, like that of any unmodifiable set,
+     * and is a SET; the same goes for the synchronized and checked wrappers.
+     */
+    public String classify(Collection<?> c) {
+        return snapshot.get(c.getClass());
+    }
+
+    /**
+     * Classifies every collection assignable to type as category. Registered types are
+     * checked before the built-in categories, the latest registration first.
+     */
+    public synchronized void register(Class<?> type, String category) {
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(category, "category");
+        snapshot = snapshot.with(type, category);
+    }
+
+    // The views of the JDK maps are classes nested in the map, or extend one that is, except
+    // when the Collections wrappers hand them out
+    private static boolean isMapView(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            Class<?> enclosing = c.getEnclosingClass();
+            if (enclosing != null && Map.class.isAssignableFrom(enclosing)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // What a hand-written classifier would do, without the map views it can't see
+    static String instanceofChain(Collection<?> c) {
+        if (c instanceof Set) {
+            return SET;
+        }
+        if (c instanceof List) {
+            return LIST;
+        }
+        if (c instanceof Queue) {
+            return QUEUE;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Classifies a heterogeneous array of collections, then times both classifiers on it.
+     */
+    public static void main(String[] args) {
+        Map<String, String> hashMap = new HashMap<>();
+        Map<String, String> treeMap = new TreeMap<>();
+        Collection<?>[] kinds = {
+            new HashSet<String>(), new TreeSet<String>(), new LinkedHashSet<String>(), EnumSet.noneOf(Thread.State.class),
+            new ArrayList<String>(), new LinkedList<String>(), Arrays.asList("a"), Collections.unmodifiableList(new ArrayList<>()),
+            new ArrayDeque<String>(), new PriorityQueue<String>(),
+            hashMap.values(), hashMap.keySet(), hashMap.entrySet(), treeMap.values(), new IdentityHashMap<>().values(),
+            Collections.unmodifiableMap(hashMap).keySet(), // A set, not a map view: see classify
+            new Vector<String>(), new Stack<String>(),
+        };
+        RuntimeCollectionClassifier classifier = new RuntimeCollectionClassifier();
+        classifier.register(Vector.class, "legacy list");
+        for (Collection<?> c : kinds) {
+            System.out.printf("%-50s overload: %-8s runtime: %s%n", c.getClass().getName(),
+                CollectionClassfier.classify(c), classifier.classify(c));
+        }
+
+        Random random = new Random(42);
+        Collection<?>[] mixed = new Collection<?>[1 << 16];
+        for (int i = 0; i < mixed.length; i++) {
+            mixed[i] = kinds[random.nextInt(kinds.length)];
+        }
+        int rounds = 500;
+        for (int round = 0; round < 5; round++) {
+            int sink = 0;
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Collection<?> c : mixed) {
+                    sink += instanceofChain(c).length();
+                }
+            }
+            long chain = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (Collection<?> c : mixed) {
+                    sink += classifier.classify(c).length();
+                }
+            }
+            long cached = System.nanoTime() - t0;
+
+            double ops = (double) rounds * mixed.length;
+            System.out.printf("instanceof chain %.2f ns, ClassValue %.2f ns (%d)%n", chain / ops, cached / ops, sink);
+        }
+    }
+}